@@ -0,0 +1,232 @@
+package org.bedework.util.deployment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/** Extract an archive into a directory.
+ *
+ * <p>With one thread the archive is read sequentially. With more the
+ * central directory is read, all the directories needed are created
+ * up front and entries are inflated concurrently. Either way the tree
+ * is the same - directory entries are ignored and directories are only
+ * created to hold files.</p>
+ *
+ * <p>Optionally the descriptors we edit are held in memory rather than
+ * written. See {@link HeldDescriptors}.</p>
+ *
+ * @author douglm
+ */
+public class ArchiveExtractor extends BaseClass {
+  static final int bufferSize = 64 * 1024;
+
+  private int threads;
+
+  private Set<String> skip;
+
+  private boolean holdDescriptors;
+
+  private long bytes;
+
+  private int files;
+
+  public ArchiveExtractor(final Utils utils) {
+    super(utils);
+  }
+
+  /**
+   * @param val number of threads used to extract. Less than 2 means
+   *            extract sequentially.
+   */
+  public void setThreads(final int val) {
+    threads = val;
+  }
+
+  /**
+   * @param val entry names not to extract or null
+   */
+  public void setSkip(final Set<String> val) {
+    skip = val;
+  }
+
+  /**
+   * @param val true to hold descriptors in memory rather than write them
+   */
+  public void setHoldDescriptors(final boolean val) {
+    holdDescriptors = val;
+  }
+
+  /** Extract the archive. Files and bytes written are counted against
+   * the timing scope of the calling thread.
+   *
+   * @param zipPath archive to extract
+   * @param destDir directory to extract it into
+   * @throws Throwable on error
+   */
+  public void extract(final Path zipPath,
+                      final Path destDir) throws Throwable {
+    bytes = 0;
+    files = 0;
+
+    if (threads > 1) {
+      extractParallel(zipPath, destDir);
+    } else {
+      extractSequential(zipPath, destDir);
+    }
+
+    final Timings timings = utils.getTimings();
+    timings.count(timings.current(), bytes, files);
+  }
+
+  /**
+   * @return bytes written by the last extract
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return files written by the last extract
+   */
+  public int getFiles() {
+    return files;
+  }
+
+  private boolean skipped(final ZipEntry ze) {
+    return ze.isDirectory() ||
+            ((skip != null) && skip.contains(ze.getName()));
+  }
+
+  private void extractSequential(final Path zipPath,
+                                 final Path destDir) throws Throwable {
+    final byte[] buffer = new byte[bufferSize];
+    final Set<Path> dirs = new HashSet<>();
+
+    try (final ZipInputStream zis =
+                 new ZipInputStream(Files.newInputStream(zipPath),
+                                    StandardCharsets.UTF_8)) {
+      for (ZipEntry ze = zis.getNextEntry();
+           ze != null;
+           ze = zis.getNextEntry()) {
+        final Path outPath = destDir.resolve(ze.getName());
+
+        if (skipped(ze)) {
+          if (utils.debug()) {
+            utils.debug("Skip entry " + outPath);
+          }
+          continue;
+        }
+
+        // Entry has a relative path which may need sub directories
+        final Path dir = outPath.getParent();
+        if (dirs.add(dir)) {
+          Files.createDirectories(dir);
+        }
+
+        bytes += write(ze, zis, outPath, buffer);
+        files++;
+      }
+    }
+  }
+
+  private void extractParallel(final Path zipPath,
+                               final Path destDir) throws Throwable {
+    try (final ZipFile zf = new ZipFile(zipPath.toFile())) {
+      final List<ZipEntry> entries = new ArrayList<>();
+      final Set<Path> dirs = new TreeSet<>();
+
+      final Enumeration<? extends ZipEntry> zes = zf.entries();
+      while (zes.hasMoreElements()) {
+        final ZipEntry ze = zes.nextElement();
+
+        if (skipped(ze)) {
+          continue;
+        }
+
+        entries.add(ze);
+        dirs.add(destDir.resolve(ze.getName()).getParent());
+      }
+
+      for (final Path dir: dirs) {
+        Files.createDirectories(dir);
+      }
+
+      final ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+      try {
+        final List<Future<Long>> futures = new ArrayList<>();
+
+        for (final ZipEntry ze: entries) {
+          futures.add(pool.submit(
+                  () -> extractEntry(zf, ze,
+                                     destDir.resolve(ze.getName()))));
+        }
+
+        for (final Future<Long> f: futures) {
+          bytes += f.get();
+        }
+
+        files = entries.size();
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  private long extractEntry(final ZipFile zf,
+                            final ZipEntry ze,
+                            final Path outPath) throws IOException {
+    try (final InputStream is = zf.getInputStream(ze)) {
+      return write(ze, is, outPath, new byte[bufferSize]);
+    }
+  }
+
+  /* Copy the rest of is to a new file or hold it. The stream is left
+     open. */
+  private long write(final ZipEntry ze,
+                     final InputStream is,
+                     final Path outPath,
+                     final byte[] buffer) throws IOException {
+    if (holdDescriptors && HeldDescriptors.isDescriptor(ze.getName())) {
+      if (utils.debug()) {
+        utils.debug("Hold " + outPath);
+      }
+
+      final byte[] content = is.readAllBytes();
+      utils.getHeldDescriptors().hold(outPath, content);
+
+      return content.length;
+    }
+
+    if (utils.debug()) {
+      utils.debug("Unzip " + outPath);
+    }
+
+    long len = 0;
+
+    try (final OutputStream os = Files.newOutputStream(outPath)) {
+      int n;
+      while ((n = is.read(buffer)) > 0) {
+        os.write(buffer, 0, n);
+        len += n;
+      }
+    }
+
+    return len;
+  }
+}
@@ -1,5 +1,6 @@
 package org.bedework.util.deployment;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -101,10 +102,16 @@ public class DeployableResource extends VersionedFile {
     final File manifest = new File(meta.getAbsolutePath(),
                                    "MANIFEST.MF");
 
+    final HeldDescriptors held = utils.getHeldDescriptors();
+    final byte[] heldMf = held.get(manifest.toPath());
+
     final Manifest mf;
     final Attributes mainAttrs;
 
-    if (!manifest.exists()) {
+    if (heldMf != null) {
+      mf = new Manifest(new ByteArrayInputStream(heldMf));
+      mainAttrs = mf.getMainAttributes();
+    } else if (!manifest.exists()) {
       //utils.warn("No MANIFEST.MF");
       mf = new Manifest();
       mainAttrs = mf.getMainAttributes();
@@ -122,8 +129,9 @@ public class DeployableResource extends VersionedFile {
       mainAttrs.putValue("Dependencies", dependencies);
     }
 
-    final FileOutputStream fos = new FileOutputStream(manifest, false);
+    final FileOutputStream fos = Utils.newOutputStream(manifest);
     mf.write(fos);
     fos.close();
+    held.release(manifest.toPath());
   }
 }
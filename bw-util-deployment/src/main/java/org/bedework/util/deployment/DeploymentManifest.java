@@ -0,0 +1,289 @@
+package org.bedework.util.deployment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** The relative path, size and content hash of every file in a
+ * deployed artifact. It is stored as a hidden file alongside the
+ * deployment so that a redeploy need only write the files which
+ * changed and remove those which went away.
+ *
+ * <p>The stored form is one line per file:<br/>
+ * &lt;sha-256&gt; &lt;size&gt; &lt;relative-path&gt;</p>
+ *
+ * @author douglm
+ */
+public class DeploymentManifest extends BaseClass {
+  private record Entry(long size,
+                       String hash) {}
+
+  private final Map<String, Entry> entries = new TreeMap<>();
+
+  private int written;
+  private long bytesWritten;
+  private int removed;
+
+  private DeploymentManifest(final Utils utils) {
+    super(utils);
+  }
+
+  /**
+   * @param name of the deployment
+   * @return name of the manifest file for that deployment
+   */
+  public static String manifestName(final String name) {
+    return "." + name + ".manifest";
+  }
+
+  /** Hash every file under the given directory.
+   *
+   * @param utils for logging
+   * @param root of the tree
+   * @return manifest for the tree
+   * @throws Throwable on error
+   */
+  public static DeploymentManifest build(final Utils utils,
+                                         final Path root) throws Throwable {
+    final DeploymentManifest mf = new DeploymentManifest(utils);
+
+    try (final Stream<Path> files = Files.walk(root)) {
+      for (final Path p: (Iterable<Path>)files::iterator) {
+        if (!Files.isRegularFile(p)) {
+          continue;
+        }
+
+        mf.entries.put(relative(root, p),
+                       new Entry(Files.size(p), hash(p)));
+      }
+    }
+
+    return mf;
+  }
+
+  /** Load the stored manifest for a deployment.
+   *
+   * @param utils for logging
+   * @param deployDir the deployment directory
+   * @param name of the deployment
+   * @return manifest or null if none or unreadable
+   */
+  public static DeploymentManifest load(final Utils utils,
+                                        final Path deployDir,
+                                        final String name) {
+    final Path mfPath = deployDir.resolve(manifestName(name));
+
+    if (!Files.isRegularFile(mfPath)) {
+      return null;
+    }
+
+    final DeploymentManifest mf = new DeploymentManifest(utils);
+
+    try (final BufferedReader rdr =
+                 Files.newBufferedReader(mfPath,
+                                         StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = rdr.readLine()) != null) {
+        final String[] parts = line.split(" ", 3);
+
+        if (parts.length != 3) {
+          utils.warn("Bad manifest line in " + mfPath + ": " + line);
+          return null;
+        }
+
+        mf.entries.put(parts[2],
+                       new Entry(Long.parseLong(parts[1]), parts[0]));
+      }
+    } catch (final Throwable t) {
+      utils.warn("Unable to read manifest " + mfPath + ": " + t);
+      return null;
+    }
+
+    return mf;
+  }
+
+  /** Remove any stored manifest for the deployment.
+   *
+   * @param deployDir the deployment directory
+   * @param name of the deployment
+   * @throws Throwable on error
+   */
+  public static void delete(final Path deployDir,
+                            final String name) throws Throwable {
+    Files.deleteIfExists(deployDir.resolve(manifestName(name)));
+  }
+
+  /** Rename the stored manifest along with its deployment.
+   *
+   * @param deployDir the deployment directory
+   * @param fromName current name of the deployment
+   * @param toName new name of the deployment
+   * @throws Throwable on error
+   */
+  public static void rename(final Path deployDir,
+                            final String fromName,
+                            final String toName) throws Throwable {
+    Files.move(deployDir.resolve(manifestName(fromName)),
+               deployDir.resolve(manifestName(toName)),
+               REPLACE_EXISTING);
+  }
+
+  /**
+   * @param deployDir the deployment directory
+   * @param name of the deployment
+   * @throws Throwable on error
+   */
+  public void store(final Path deployDir,
+                    final String name) throws Throwable {
+    final Path mfPath = deployDir.resolve(manifestName(name));
+
+    try (final BufferedWriter wtr =
+                 Files.newBufferedWriter(mfPath,
+                                         StandardCharsets.UTF_8)) {
+      for (final Map.Entry<String, Entry> me: entries.entrySet()) {
+        wtr.write(me.getValue().hash());
+        wtr.write(' ');
+        wtr.write(String.valueOf(me.getValue().size()));
+        wtr.write(' ');
+        wtr.write(me.getKey());
+        wtr.newLine();
+      }
+    }
+  }
+
+  /**
+   * @param that manifest to compare
+   * @return true if both describe the same files and content
+   */
+  public boolean sameAs(final DeploymentManifest that) {
+    return (that != null) && entries.equals(that.entries);
+  }
+
+  /** Make the deployed tree match this manifest. Only files which are
+   * new or whose content changed are copied and only files in the old
+   * manifest but not in this one are removed.
+   *
+   * @param from the tree this manifest was built from
+   * @param to the deployed tree
+   * @param old manifest of the deployed tree - null to copy everything
+   * @throws Throwable on error
+   */
+  public void sync(final Path from,
+                   final Path to,
+                   final DeploymentManifest old) throws Throwable {
+    for (final Map.Entry<String, Entry> me: entries.entrySet()) {
+      final String rel = me.getKey();
+      final Entry e = me.getValue();
+      final Path target = to.resolve(rel);
+
+      if ((old != null) &&
+              e.equals(old.entries.get(rel)) &&
+              Files.isRegularFile(target) &&
+              (Files.size(target) == e.size())) {
+        continue;
+      }
+
+      Files.createDirectories(target.getParent());
+      utils.copyPlain(from.resolve(rel), target);
+      written++;
+      bytesWritten += e.size();
+    }
+
+    if (old == null) {
+      return;
+    }
+
+    for (final String rel: old.entries.keySet()) {
+      if (entries.containsKey(rel)) {
+        continue;
+      }
+
+      final Path target = to.resolve(rel);
+      if (Files.deleteIfExists(target)) {
+        removed++;
+      }
+
+      // Remove any directories left empty
+      Path dir = target.getParent();
+      while ((dir != null) && !dir.equals(to) && isEmptyDir(dir)) {
+        Files.delete(dir);
+        dir = dir.getParent();
+      }
+    }
+  }
+
+  public int getWritten() {
+    return written;
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public int getRemoved() {
+    return removed;
+  }
+
+  private static boolean isEmptyDir(final Path dir) throws IOException {
+    if (!Files.isDirectory(dir)) {
+      return false;
+    }
+
+    try (final Stream<Path> s = Files.list(dir)) {
+      return s.findAny().isEmpty();
+    }
+  }
+
+  private static String relative(final Path root,
+                                 final Path p) {
+    final String rel = root.relativize(p).toString();
+
+    if (File.separatorChar == '/') {
+      return rel;
+    }
+
+    return rel.replace(File.separatorChar, '/');
+  }
+
+  private static String hash(final Path p) throws Throwable {
+    final MessageDigest md = MessageDigest.getInstance("SHA-256");
+    final byte[] buffer = new byte[64 * 1024];
+
+    try (final InputStream is = Files.newInputStream(p)) {
+      int len;
+      while ((len = is.read(buffer)) > 0) {
+        md.update(buffer, 0, len);
+      }
+    }
+
+    final StringBuilder sb = new StringBuilder();
+    for (final byte b: md.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+        .append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return sb.toString();
+  }
+
+  public String toString() {
+    return new StringBuilder(getClass().getSimpleName())
+            .append("{")
+            .append("files=").append(entries.size())
+            .append(", written=").append(written)
+            .append(", bytesWritten=").append(bytesWritten)
+            .append(", removed=").append(removed)
+            .append("}")
+            .toString();
+  }
+}
@@ -130,6 +130,8 @@ public class Ear extends DeployableResource implements Updateable {
     final Path inPath = Paths.get(war.theFile.getAbsolutePath());
     final Path outPath = Paths.get(newWarDir.getAbsolutePath());
 
+    // The copy must include descriptors not yet written
+    utils.getHeldDescriptors().flush(inPath);
     utils.copy(inPath, outPath, true, null);
 
     final War newWar = new War(utils,
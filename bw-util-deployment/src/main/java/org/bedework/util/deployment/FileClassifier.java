@@ -0,0 +1,226 @@
+package org.bedework.util.deployment;
+
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.String.format;
+
+/** Decides how a file copied with token replacement is handled.
+ * Binary files are copied as they are, as are text files with no
+ * tokens - only the rest pay for replacement.
+ *
+ * <p>In order:<ul>
+ *   <li>A file matching an exclude glob is copied as is</li>
+ *   <li>A file matching an include glob is treated as text</li>
+ *   <li>Otherwise the first block is sniffed - a NUL byte or the
+ *   magic number of a common binary format means it is binary</li>
+ * </ul>
+ * Globs are matched against the file name and against the whole path,
+ * so "*.png" and "**&#47;images/**" both work. Jars and zips are always
+ * excluded.</p>
+ *
+ * @author douglm
+ */
+public class FileClassifier extends BaseClass {
+  public enum Kind {
+    /** Matched an exclude glob */
+    EXCLUDED("excluded"),
+
+    /** Sniffed as binary */
+    BINARY("binary"),
+
+    /** Text with no tokens */
+    TOKEN_FREE("no tokens"),
+
+    /** Text with tokens replaced */
+    TOKENS("tokens");
+
+    private final String label;
+
+    Kind(final String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private static final int sniffSize = 8 * 1024;
+
+  private static final byte[][] magic = {
+          {(byte)0x89, 'P', 'N', 'G'},          // png
+          {'G', 'I', 'F', '8'},                 // gif
+          {(byte)0xff, (byte)0xd8, (byte)0xff}, // jpeg
+          {'%', 'P', 'D', 'F'},                 // pdf
+          {'P', 'K', 3, 4},                     // zip, jar etc.
+          {(byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe}, // class
+          {(byte)0x1f, (byte)0x8b},             // gzip
+          {'B', 'Z', 'h'},                      // bzip2
+          {'w', 'O', 'F', 'F'},                 // woff
+          {'w', 'O', 'F', '2'},                 // woff2
+          {'O', 'T', 'T', 'O'},                 // opentype
+          {'R', 'I', 'F', 'F'},                 // webp, wav, avi
+          {'I', 'D', '3'},                      // mp3
+          {'I', 'I', '*', 0},                   // tiff
+          {'M', 'M', 0, '*'},                   // tiff
+  };
+
+  private final List<PathMatcher> includes = new CopyOnWriteArrayList<>();
+
+  private final List<PathMatcher> excludes = new CopyOnWriteArrayList<>();
+
+  private final AtomicLongArray files =
+          new AtomicLongArray(Kind.values().length);
+
+  private final AtomicLongArray bytes =
+          new AtomicLongArray(Kind.values().length);
+
+  public FileClassifier(final Utils utils) {
+    super(utils);
+
+    addExclude("*.jar");
+    addExclude("*.zip");
+  }
+
+  /**
+   * @param glob for files always to treat as text
+   */
+  public void addInclude(final String glob) {
+    includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+  }
+
+  /**
+   * @param glob for files never to token process
+   */
+  public void addExclude(final String glob) {
+    excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+  }
+
+  /** Decide if a file might need token replacement. Files which do
+   * not are EXCLUDED or BINARY. Telling text with tokens from text
+   * without needs a full scan so isn't done here.
+   *
+   * @param path of file
+   * @return EXCLUDED, BINARY or TOKENS
+   * @throws Throwable on error
+   */
+  public Kind classify(final Path path) throws Throwable {
+    if (matches(excludes, path)) {
+      return Kind.EXCLUDED;
+    }
+
+    if (matches(includes, path)) {
+      return Kind.TOKENS;
+    }
+
+    if (isBinary(path)) {
+      return Kind.BINARY;
+    }
+
+    return Kind.TOKENS;
+  }
+
+  /**
+   * @param kind how the file was copied
+   * @param size of the file
+   */
+  public void count(final Kind kind,
+                    final long size) {
+    files.incrementAndGet(kind.ordinal());
+    bytes.addAndGet(kind.ordinal(), size);
+  }
+
+  /**
+   * @param kind of file
+   * @return number copied
+   */
+  public long getFiles(final Kind kind) {
+    return files.get(kind.ordinal());
+  }
+
+  /**
+   * @param kind of file
+   * @return bytes copied
+   */
+  public long getBytes(final Kind kind) {
+    return bytes.get(kind.ordinal());
+  }
+
+  /** Log the counts for each kind of file if any were copied
+   */
+  public void report() {
+    for (final Kind kind: Kind.values()) {
+      if (getFiles(kind) == 0) {
+        continue;
+      }
+
+      utils.info(format("Token copy %-10s %8d files %12d bytes",
+                        kind.getLabel(),
+                        getFiles(kind),
+                        getBytes(kind)));
+    }
+  }
+
+  private static boolean matches(final List<PathMatcher> matchers,
+                                 final Path path) {
+    final Path name = path.getFileName();
+
+    for (final PathMatcher pm: matchers) {
+      if (pm.matches(name) || pm.matches(path)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean isBinary(final Path path) throws Throwable {
+    final byte[] block = new byte[sniffSize];
+    int len = 0;
+
+    try (final InputStream is = Files.newInputStream(path)) {
+      int n;
+      while ((len < block.length) &&
+              ((n = is.read(block, len, block.length - len)) > 0)) {
+        len += n;
+      }
+    }
+
+    for (final byte[] m: magic) {
+      if (startsWith(block, len, m)) {
+        return true;
+      }
+    }
+
+    for (int i = 0; i < len; i++) {
+      if (block[i] == 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean startsWith(final byte[] block,
+                                    final int len,
+                                    final byte[] m) {
+    if (len < m.length) {
+      return false;
+    }
+
+    for (int i = 0; i < m.length; i++) {
+      if (block[i] != m[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,135 @@
+package org.bedework.util.deployment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Descriptors extracted from an archive but not yet written.
+ *
+ * <p>The descriptors we edit are kept in memory as they are extracted
+ * rather than written and then read back. Whoever edits one reads the
+ * held content and, when it writes the result, the held entry is
+ * forgotten. Whatever is still held once a tree has been updated is
+ * written as it was extracted.</p>
+ *
+ * <p>Entries are keyed by their absolute path so that any number of
+ * trees can be held at once.</p>
+ *
+ * @author douglm
+ */
+public class HeldDescriptors {
+  /* Names, relative to a module, of the descriptors we hold */
+  private static final String[] descriptors = {
+          "WEB-INF/web.xml",
+          "WEB-INF/jboss-web.xml",
+          "META-INF/application.xml",
+          "META-INF/MANIFEST.MF",
+  };
+
+  private final Map<Path, byte[]> held = new ConcurrentHashMap<>();
+
+  /**
+   * @param entryName name of an archive entry
+   * @return true if it is a descriptor we hold rather than write
+   */
+  public static boolean isDescriptor(final String entryName) {
+    if (entryName.endsWith(".wsdl")) {
+      return true;
+    }
+
+    for (final String d: descriptors) {
+      if (entryName.equals(d) || entryName.endsWith("/" + d)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @param path where the content belongs
+   * @param content as extracted
+   */
+  public void hold(final Path path,
+                   final byte[] content) {
+    held.put(key(path), content);
+  }
+
+  /**
+   * @param path of a file
+   * @return held content or null if not held
+   */
+  public byte[] get(final Path path) {
+    return held.get(key(path));
+  }
+
+  /**
+   * @param path of a file
+   * @return true if it is held
+   */
+  public boolean isHeld(final Path path) {
+    return held.containsKey(key(path));
+  }
+
+  /** Forget a held entry - its file has been written.
+   *
+   * @param path of a file
+   */
+  public void release(final Path path) {
+    held.remove(key(path));
+  }
+
+  /** Write and forget everything held below a directory.
+   *
+   * @param dir root of a tree
+   * @return number of files written
+   * @throws IOException on error
+   */
+  public int flush(final Path dir) throws IOException {
+    final Path root = key(dir);
+    int written = 0;
+
+    for (final Iterator<Map.Entry<Path, byte[]>> it =
+         held.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<Path, byte[]> ent = it.next();
+
+      if (!ent.getKey().startsWith(root)) {
+        continue;
+      }
+
+      try (final OutputStream os = Files.newOutputStream(ent.getKey())) {
+        os.write(ent.getValue());
+      }
+
+      it.remove();
+      written++;
+    }
+
+    return written;
+  }
+
+  /** Forget everything held below a directory without writing it.
+   *
+   * @param dir root of a tree
+   */
+  public void drop(final Path dir) {
+    final Path root = key(dir);
+
+    held.keySet().removeIf(p -> p.startsWith(root));
+  }
+
+  /**
+   * @return number of files held
+   */
+  public int size() {
+    return held.size();
+  }
+
+  private static Path key(final Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+}
@@ -25,7 +25,7 @@ public class JbossAllXml extends XmlFile {
     final File jbossAllF = new File(earMeta.getAbsolutePath(),
                                     "jboss-all.xml");
 
-    final FileOutputStream fos = new FileOutputStream(jbossAllF, false);
+    final FileOutputStream fos = Utils.newOutputStream(jbossAllF);
     fos.write(jbossAllTemplate.getBytes());
     fos.close();
   }
@@ -28,7 +28,7 @@ public class JbossDeploymentStructureXml extends XmlFile {
     final File jbossAllF = new File(earMeta.getAbsolutePath(),
                                     "jboss-deployment-structure.xml");
 
-    final FileOutputStream fos = new FileOutputStream(jbossAllF, false);
+    final FileOutputStream fos = Utils.newOutputStream(jbossAllF);
     fos.write(jbossAllTemplate.getBytes());
     fos.close();
   }
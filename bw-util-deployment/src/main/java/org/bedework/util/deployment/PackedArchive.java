@@ -0,0 +1,530 @@
+package org.bedework.util.deployment;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/** Write a processed tree as a single zip archive.
+ *
+ * <p>If the tree was extracted from an archive, every entry whose
+ * content is unchanged is copied from that archive as raw compressed
+ * bytes - it is neither inflated nor deflated. Only new or edited
+ * files are compressed.</p>
+ *
+ * <p>Zip64 is not supported - a source archive using it is treated
+ * as having no reusable entries and an output needing it is an
+ * error.</p>
+ *
+ * @author douglm
+ */
+public class PackedArchive extends BaseClass {
+  private static final int localHeaderSig = 0x04034b50;
+  private static final int centralHeaderSig = 0x02014b50;
+  private static final int endOfCentralSig = 0x06054b50;
+  private static final int dataDescriptorSig = 0x08074b50;
+
+  private static final int flagDataDescriptor = 0x0008;
+  private static final int flagUtf8 = 0x0800;
+
+  private static final int methodStored = 0;
+  private static final int methodDeflated = 8;
+
+  private static final long maxSize = 0xffffffffL;
+  private static final int maxEntries = 0xffff;
+
+  /** An entry in the source archive. */
+  private record SourceEntry(String name,
+                             long crc,
+                             long size,
+                             long offset,
+                             byte[] centralRecord) {}
+
+  private int rawEntries;
+  private int deflatedEntries;
+
+  /* Start of the central directory in the source - the end of the
+     last local record. */
+  private long sourceCdStart;
+
+  public PackedArchive(final Utils utils) {
+    super(utils);
+  }
+
+  /** Write the tree as an archive.
+   *
+   * @param tree the processed tree
+   * @param source the archive the tree was extracted from or null
+   * @param archive the archive to write
+   * @throws Throwable on error
+   */
+  public void pack(final Path tree,
+                   final Path source,
+                   final Path archive) throws Throwable {
+    final List<String> names = new ArrayList<>();
+
+    try (final Stream<Path> paths = Files.walk(tree)) {
+      paths.filter(p -> !p.equals(tree))
+           .forEach(p -> {
+             final String rel = relative(tree, p);
+             names.add(Files.isDirectory(p) ? rel + "/" : rel);
+           });
+    }
+
+    Map<String, SourceEntry> sourceEntries = null;
+    if (source != null) {
+      sourceEntries = readCentralDirectory(source);
+    }
+
+    /* Unchanged entries are written first in source order so the
+       source is read sequentially.
+     */
+    final List<SourceEntry> raw = new ArrayList<>();
+    final List<String> changed = new ArrayList<>();
+
+    for (final String name: names) {
+      final SourceEntry se;
+      if (sourceEntries == null) {
+        se = null;
+      } else {
+        se = sourceEntries.get(name);
+      }
+
+      if ((se != null) && unchanged(tree.resolve(name), name, se)) {
+        raw.add(se);
+      } else {
+        changed.add(name);
+      }
+    }
+
+    raw.sort(Comparator.comparingLong(SourceEntry::offset));
+
+    if ((raw.size() + changed.size()) > maxEntries) {
+      throw new Exception("Too many entries for a packed archive: " +
+                                  archive);
+    }
+
+    try (final FileChannel out =
+                 FileChannel.open(archive,
+                                  StandardOpenOption.CREATE,
+                                  StandardOpenOption.TRUNCATE_EXISTING,
+                                  StandardOpenOption.WRITE)) {
+      final List<byte[]> central = new ArrayList<>();
+
+      if (!raw.isEmpty()) {
+        copyRaw(source, sourceEntries, raw, out, central);
+      }
+
+      for (final String name: changed) {
+        writeEntry(tree.resolve(name), name, out, central);
+      }
+
+      writeCentralDirectory(out, central);
+    }
+
+    utils.debug("Packed " + archive + ": " + rawEntries +
+                        " raw entries, " + deflatedEntries +
+                        " compressed");
+  }
+
+  public int getRawEntries() {
+    return rawEntries;
+  }
+
+  public int getDeflatedEntries() {
+    return deflatedEntries;
+  }
+
+  /* ====================================================================
+   *                   Reading the source
+   * ==================================================================== */
+
+  private Map<String, SourceEntry> readCentralDirectory(final Path source)
+          throws IOException {
+    try (final FileChannel in = FileChannel.open(source,
+                                                 StandardOpenOption.READ)) {
+      final long len = in.size();
+      final int tailLen = (int)Math.min(len, 0xffff + 22);
+      final ByteBuffer tail = read(in, len - tailLen, tailLen);
+
+      int eocd = -1;
+      for (int i = tailLen - 22; i >= 0; i--) {
+        if (tail.getInt(i) == endOfCentralSig) {
+          eocd = i;
+          break;
+        }
+      }
+
+      if (eocd < 0) {
+        utils.warn("No central directory in " + source);
+        return null;
+      }
+
+      final int entries = tail.getShort(eocd + 10) & 0xffff;
+      final long cdSize = tail.getInt(eocd + 12) & maxSize;
+      final long cdOffset = tail.getInt(eocd + 16) & maxSize;
+
+      if ((entries == maxEntries) || (cdOffset == maxSize)) {
+        // Zip64 - don't try
+        return null;
+      }
+
+      final ByteBuffer cd = read(in, cdOffset, (int)cdSize);
+      final Map<String, SourceEntry> res = new HashMap<>();
+
+      int pos = 0;
+      for (int i = 0; i < entries; i++) {
+        if (cd.getInt(pos) != centralHeaderSig) {
+          utils.warn("Bad central directory in " + source);
+          return null;
+        }
+
+        final long csize = cd.getInt(pos + 20) & maxSize;
+        final long size = cd.getInt(pos + 24) & maxSize;
+        final int nameLen = cd.getShort(pos + 28) & 0xffff;
+        final int extraLen = cd.getShort(pos + 30) & 0xffff;
+        final int commentLen = cd.getShort(pos + 32) & 0xffff;
+        final long offset = cd.getInt(pos + 42) & maxSize;
+
+        if ((csize == maxSize) || (size == maxSize) ||
+                (offset == maxSize)) {
+          return null;
+        }
+
+        final byte[] nameBytes = new byte[nameLen];
+        cd.get(pos + 46, nameBytes);
+
+        final byte[] record = new byte[46 + nameLen + extraLen + commentLen];
+        cd.get(pos, record);
+
+        final SourceEntry se =
+                new SourceEntry(new String(nameBytes,
+                                           StandardCharsets.UTF_8),
+                                cd.getInt(pos + 16) & maxSize,
+                                size,
+                                offset,
+                                record);
+        res.put(se.name(), se);
+
+        pos += record.length;
+      }
+
+      sourceCdStart = cdOffset;
+      return res;
+    }
+  }
+
+  private boolean unchanged(final Path p,
+                            final String name,
+                            final SourceEntry se) throws IOException {
+    if (name.endsWith("/")) {
+      return true;
+    }
+
+    if (Files.size(p) != se.size()) {
+      return false;
+    }
+
+    final CRC32 crc = new CRC32();
+    final byte[] buffer = new byte[64 * 1024];
+
+    try (final InputStream is = Files.newInputStream(p)) {
+      int len;
+      while ((len = is.read(buffer)) > 0) {
+        crc.update(buffer, 0, len);
+      }
+    }
+
+    return crc.getValue() == se.crc();
+  }
+
+  /* ====================================================================
+   *                   Writing
+   * ==================================================================== */
+
+  /** Copy each local record - header, data and any descriptor - up to
+   * the start of the next record in the source.
+   */
+  private void copyRaw(final Path source,
+                       final Map<String, SourceEntry> all,
+                       final List<SourceEntry> raw,
+                       final FileChannel out,
+                       final List<byte[]> central) throws IOException {
+    /* Record boundaries come from all entries in the source, not
+       just those we copy.
+     */
+    final long[] offsets = all.values().stream()
+                              .mapToLong(SourceEntry::offset)
+                              .sorted()
+                              .toArray();
+
+    try (final FileChannel in = FileChannel.open(source,
+                                                 StandardOpenOption.READ)) {
+      for (final SourceEntry se: raw) {
+        final long end = nextOffset(offsets, se.offset(), sourceCdStart);
+        final long newOffset = out.position();
+
+        long pos = se.offset();
+        while (pos < end) {
+          pos += in.transferTo(pos, end - pos, out);
+        }
+
+        final byte[] record = se.centralRecord().clone();
+        ByteBuffer.wrap(record)
+                  .order(ByteOrder.LITTLE_ENDIAN)
+                  .putInt(42, checkSize(newOffset));
+        central.add(record);
+        rawEntries++;
+      }
+    }
+  }
+
+  private static long nextOffset(final long[] offsets,
+                                 final long offset,
+                                 final long cdStart) {
+    for (final long o: offsets) {
+      if (o > offset) {
+        return o;
+      }
+    }
+
+    return cdStart;
+  }
+
+  private void writeEntry(final Path p,
+                          final String name,
+                          final FileChannel out,
+                          final List<byte[]> central) throws IOException {
+    final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    final boolean dir = name.endsWith("/");
+    final int method = dir ? methodStored : methodDeflated;
+    final int flags = flagUtf8 | (dir ? 0 : flagDataDescriptor);
+    final long dosTime = dosTime(Files.getLastModifiedTime(p).toMillis());
+    final long offset = out.position();
+
+    final ByteBuffer lh = header(30 + nameBytes.length);
+    lh.putInt(localHeaderSig)
+      .putShort((short)20)
+      .putShort((short)flags)
+      .putShort((short)method)
+      .putInt((int)dosTime)
+      .putInt(0)    // crc
+      .putInt(0)    // compressed size
+      .putInt(0)    // size
+      .putShort((short)nameBytes.length)
+      .putShort((short)0)
+      .put(nameBytes);
+    write(out, lh.flip());
+
+    long crc = 0;
+    long csize = 0;
+    long size = 0;
+
+    if (!dir) {
+      final CRC32 crc32 = new CRC32();
+      final CountingOutputStream cos =
+              new CountingOutputStream(new ChannelOutputStream(out));
+      final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION,
+                                        true);
+
+      try (final InputStream is = Files.newInputStream(p)) {
+        final DeflaterOutputStream dos =
+                new DeflaterOutputStream(new BufferedOutputStream(cos,
+                                                                  64 * 1024),
+                                         def, 64 * 1024);
+        final byte[] buffer = new byte[64 * 1024];
+        int len;
+        while ((len = is.read(buffer)) > 0) {
+          crc32.update(buffer, 0, len);
+          dos.write(buffer, 0, len);
+          size += len;
+        }
+        dos.finish();
+        dos.flush();
+      } finally {
+        def.end();
+      }
+
+      crc = crc32.getValue();
+      csize = cos.count;
+
+      final ByteBuffer dd = header(16);
+      dd.putInt(dataDescriptorSig)
+        .putInt((int)crc)
+        .putInt(checkSize(csize))
+        .putInt(checkSize(size));
+      write(out, dd.flip());
+    }
+
+    final ByteBuffer ch = header(46 + nameBytes.length);
+    ch.putInt(centralHeaderSig)
+      .putShort((short)20)
+      .putShort((short)20)
+      .putShort((short)flags)
+      .putShort((short)method)
+      .putInt((int)dosTime)
+      .putInt((int)crc)
+      .putInt(checkSize(csize))
+      .putInt(checkSize(size))
+      .putShort((short)nameBytes.length)
+      .putShort((short)0)   // extra
+      .putShort((short)0)   // comment
+      .putShort((short)0)   // disk
+      .putShort((short)0)   // internal attributes
+      .putInt(dir ? 0x10 : 0)
+      .putInt(checkSize(offset))
+      .put(nameBytes);
+    central.add(ch.array());
+    deflatedEntries++;
+  }
+
+  private void writeCentralDirectory(final FileChannel out,
+                                     final List<byte[]> central)
+          throws IOException {
+    final long cdOffset = out.position();
+    long cdSize = 0;
+
+    for (final byte[] record: central) {
+      write(out, ByteBuffer.wrap(record));
+      cdSize += record.length;
+    }
+
+    final ByteBuffer eocd = header(22);
+    eocd.putInt(endOfCentralSig)
+        .putShort((short)0)
+        .putShort((short)0)
+        .putShort((short)central.size())
+        .putShort((short)central.size())
+        .putInt(checkSize(cdSize))
+        .putInt(checkSize(cdOffset))
+        .putShort((short)0);
+    write(out, eocd.flip());
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static ByteBuffer header(final int len) {
+    return ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static ByteBuffer read(final FileChannel in,
+                                 final long pos,
+                                 final int len) throws IOException {
+    final ByteBuffer bb = header(len);
+    while (bb.hasRemaining()) {
+      if (in.read(bb, pos + bb.position()) < 0) {
+        throw new IOException("Unexpected end of archive");
+      }
+    }
+    return bb;
+  }
+
+  private static void write(final FileChannel out,
+                            final ByteBuffer bb) throws IOException {
+    while (bb.hasRemaining()) {
+      out.write(bb);
+    }
+  }
+
+  private static int checkSize(final long val) throws IOException {
+    if (val > maxSize) {
+      throw new IOException("Archive too large - zip64 not supported");
+    }
+    return (int)val;
+  }
+
+  private static long dosTime(final long millis) {
+    final LocalDateTime ldt =
+            LocalDateTime.ofInstant(Instant.ofEpochMilli(millis),
+                                    ZoneId.systemDefault());
+    if (ldt.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+
+    return ((long)(ldt.getYear() - 1980) << 25) |
+            ((long)ldt.getMonthValue() << 21) |
+            ((long)ldt.getDayOfMonth() << 16) |
+            ((long)ldt.getHour() << 11) |
+            ((long)ldt.getMinute() << 5) |
+            ((long)ldt.getSecond() >> 1);
+  }
+
+  private static String relative(final Path root,
+                                 final Path p) {
+    final String rel = root.relativize(p).toString();
+
+    if (File.separatorChar == '/') {
+      return rel;
+    }
+
+    return rel.replace(File.separatorChar, '/');
+  }
+
+  private static class ChannelOutputStream extends OutputStream {
+    private final FileChannel out;
+
+    ChannelOutputStream(final FileChannel out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+      final ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+      while (bb.hasRemaining()) {
+        out.write(bb);
+      }
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+    long count;
+
+    CountingOutputStream(final OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
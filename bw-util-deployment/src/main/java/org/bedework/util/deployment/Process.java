@@ -4,11 +4,12 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.Files;
@@ -17,11 +18,26 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.bedework.util.deployment.NetUtil.DavChild;
 
 /** Process a ear for deployment. The ear is in its exploded form -
@@ -36,6 +52,10 @@ import static org.bedework.util.deployment.NetUtil.DavChild;
  * template name for duplication. It is also used as the key to
  * properties.</p>
  *
+ * <p>Any number of ears, wars and sars may be named in one run. Each
+ * is unzipped, updated and deployed as a separate task on a bounded
+ * pool of threads and a single summary is logged at the end.</p>
+ *
  * @author douglm
  */
 public class Process extends AbstractMojo {
@@ -71,14 +91,68 @@ public class Process extends AbstractMojo {
 
   private String earName;
 
-  private String propsPath;
+  private final List<String> propsPaths = new ArrayList<>();
+
+  private String propsCachePath;
+
+  private boolean propsChanged;
+
+  /* Names of properties changed since the last run - null if not
+     known */
+  private Set<String> changedProps;
+
+  /* Property uses recorded for each artifact processed, by name */
+  private final Map<String, PropertyDependencies> dependencies =
+          new ConcurrentHashMap<>();
+
+  private final List<String> artifactNames = new ArrayList<>();
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private int unzipThreads;
+
+  private boolean incremental;
+
+  private boolean atomic;
+
+  private ExecutorService cleaner;
+
+  private boolean linkFiles;
+
+  private int copyThreads;
 
-  private Properties props;
+  private int docsThreads = Runtime.getRuntime().availableProcessors();
+
+  private boolean packed;
+
+  private int memoryStagingMb;
+
+  private String memoryStagingPath = "/dev/shm";
+
+  /* Set if we are staging in memory */
+  private String memOutDirPath;
+
+  private final AtomicLong memoryStaged = new AtomicLong();
+
+  private String timingsPath;
+
+  private int templateCacheMb = 64;
+
+  private final List<String> tokenIncludes = new ArrayList<>();
+
+  private final List<String> tokenExcludes = new ArrayList<>();
+
+  private final Timings timings = new Timings();
 
   private Utils utils;
 
   private final PropertiesChain pc = new PropertiesChain();
 
+  /* Bottom of the chain */
+  private PropertyStore baseProps;
+
+  private boolean tokenStats;
+
   private final List<Path> tempDirs = new ArrayList<>();
 
   public void setBaseDirPath(final String val) {
@@ -155,22 +229,267 @@ public class Process extends AbstractMojo {
     setNoEars(sarName != null);
   }
 
+  /** Add the name of an ear, war or sar to process. The type is
+   * determined from the files in the input directory.
+   *
+   * @param val artifact name
+   */
+  public void addArtifactName(final String val) {
+    artifactNames.add(val);
+  }
+
+  public void setArtifactNames(final List<String> val) {
+    artifactNames.clear();
+    if (val != null) {
+      artifactNames.addAll(val);
+    }
+  }
+
+  /**
+   * @param val maximum number of artifacts processed concurrently
+   */
+  public void setThreads(final int val) {
+    threads = val;
+  }
+
+  /**
+   * @param val number of threads used to extract each archive. Less
+   *            than 2 means extract sequentially.
+   */
+  public void setUnzipThreads(final int val) {
+    unzipThreads = val;
+  }
+
+  /**
+   * @param val true to only write files which changed since the last
+   *            deployment
+   */
+  public void setIncremental(final boolean val) {
+    incremental = val;
+  }
+
+  /**
+   * @param val true to stage each deployment alongside the deployed
+   *            tree and swap it in with a rename. Ignored for
+   *            incremental deployments which update in place.
+   */
+  public void setAtomic(final boolean val) {
+    atomic = val;
+  }
+
+  /**
+   * @param val true to hard link rather than copy files which need no
+   *            token replacement wherever possible
+   */
+  public void setLinkFiles(final boolean val) {
+    linkFiles = val;
+  }
+
+  /**
+   * @param val number of threads used to copy each directory tree.
+   *            Less than 2 means copy sequentially.
+   */
+  public void setCopyThreads(final int val) {
+    copyThreads = val;
+  }
+
+  /**
+   * @param val number of threads used to copy, with token replacement,
+   *            the docs trees (app.moredocs) into wars and sars.
+   *            Default is the number of processors. Less than 2 means
+   *            use the copy threads.
+   */
+  public void setDocsThreads(final int val) {
+    docsThreads = val;
+  }
+
+  /**
+   * @param val true to deploy each artifact as a single archive rather
+   *            than an exploded directory. Takes precedence over
+   *            incremental and atomic.
+   */
+  public void setPacked(final boolean val) {
+    packed = val;
+  }
+
+  /** Stage artifacts in a memory backed directory rather than the out
+   * directory. Artifacts which would take the total expanded size
+   * over the limit are staged in the out directory as usual.
+   *
+   * @param val maximum size in MB - 0 for no memory staging
+   */
+  public void setMemoryStagingMb(final int val) {
+    memoryStagingMb = val;
+  }
+
+  /**
+   * @param val path to a memory backed (tmpfs) directory. Default is
+   *            /dev/shm
+   */
+  public void setMemoryStagingPath(final String val) {
+    memoryStagingPath = val;
+  }
+
+  /** Timings for each phase are always logged at the end of a run.
+   *
+   * @param val path of a file to also write them to as JSON
+   */
+  public void setTimingsPath(final String val) {
+    timingsPath = val;
+  }
+
+  /** Files copied with token replacement are compiled once and kept
+   * for the run so that copying them again only resolves the tokens.
+   *
+   * @param val maximum size of the cache in MB - 0 to disable
+   */
+  public void setTemplateCacheMb(final int val) {
+    templateCacheMb = val;
+  }
+
+  /** Property files are merged, in order, into the bottom level of
+   * the chain - a property in a later file overrides an earlier one.
+   *
+   * @param val path of a property file, e.g. global, ear or host
+   */
+  public void addPropsPath(final String val) {
+    propsPaths.add(val);
+  }
+
+  public void setPropsPaths(final List<String> val) {
+    propsPaths.clear();
+    if (val != null) {
+      propsPaths.addAll(val);
+    }
+  }
+
+  /** The merged property files are stored here, keyed by the path,
+   * size and modification time of each file, so a later run with the
+   * same unchanged files need not parse them.
+   *
+   * @param val path of the binary snapshot - null for none
+   */
+  public void setPropsCachePath(final String val) {
+    propsCachePath = val;
+  }
+
+  /** The properties used by each deployment, and where, are stored
+   * alongside it. With this set a deployed artifact which is not
+   * later than the deployed one is still processed if it used a
+   * property changed since the last run. Needs the property snapshot
+   * to know what changed.
+   *
+   * @param val true to also process deployments using changed
+   *            properties
+   */
+  public void setPropsChanged(final boolean val) {
+    propsChanged = val;
+  }
+
+  /**
+   * @param val true to count property lookups and report the most
+   *            used, unresolved and unused properties at the end
+   */
+  public void setTokenStats(final boolean val) {
+    tokenStats = val;
+  }
+
+  /**
+   * @param val glob for files always to token process, e.g. "*.xsl"
+   */
+  public void addTokenInclude(final String val) {
+    tokenIncludes.add(val);
+  }
+
+  public void setTokenIncludes(final List<String> val) {
+    tokenIncludes.clear();
+    if (val != null) {
+      tokenIncludes.addAll(val);
+    }
+  }
+
+  /**
+   * @param val glob for files never to token process, e.g. "*.svg"
+   */
+  public void addTokenExclude(final String val) {
+    tokenExcludes.add(val);
+  }
+
+  public void setTokenExcludes(final List<String> val) {
+    tokenExcludes.clear();
+    if (val != null) {
+      tokenExcludes.addAll(val);
+    }
+  }
+
+  /* noEars is true for a war or sar deployed on its own */
+  private record Artifact(String name,
+                          String type,
+                          boolean noEars) {}
+
+  private record ArtifactResult(Artifact artifact,
+                                int deployed,
+                                long millis,
+                                String error) {}
+
   private static Collection<String> validSuffices =
           Arrays.asList("ear", "sar", "war");
 
-  public void execute() throws MojoFailureException {
+  private static final List<String> wildflyMarkers =
+          Arrays.asList(".failed", ".deployed", ".dodeploy");
+
+  public void execute() throws MojoExecutionException,
+                               MojoFailureException {
     utils = new Utils(getLog());
 
     if (argDebug) {
       utils.setDebug(true);
     }
 
+    if (linkFiles) {
+      utils.setCopyStrategy(Utils.CopyStrategy.LINK);
+    }
+
+    utils.setCopyThreads(copyThreads);
+    utils.setTokenCopyThreads(docsThreads);
+    utils.setTimings(timings);
+
+    if (templateCacheMb > 0) {
+      utils.getTemplates().setMaxBytes(templateCacheMb * 1024L * 1024);
+    } else {
+      utils.getTemplates().setMaxFileBytes(0);
+    }
+
+    for (final String glob: tokenIncludes) {
+      utils.getClassifier().addInclude(glob);
+    }
+
+    for (final String glob: tokenExcludes) {
+      utils.getClassifier().addExclude(glob);
+    }
+
+    if (tokenStats) {
+      pc.setStats(new TokenStats(utils));
+    }
+
     try {
-      // push an empty properties file until we fix things
-      pc.push(new Properties());
+      if (propsPaths.isEmpty()) {
+        baseProps = PropertyStore.of(new Properties());
+      } else {
+        final PropertyFiles pf = new PropertyFiles(utils);
+        baseProps = pf.load(propsPaths, propsCachePath);
+        changedProps = pf.getChanged();
+      }
+      pc.push(baseProps);
+
+      if (propsChanged && (changedProps == null)) {
+        utils.warn("No earlier properties to compare against - " +
+                           "all deployments are treated as affected");
+      }
 
       if (inUrl != null) {
-        inDirPath = getRemoteFiles(inUrl);
+        inDirPath = timings.time(null, Timings.Phase.FETCH,
+                                 () -> getRemoteFiles(inUrl));
         if (inDirPath == null) {
           return;
         }
@@ -197,8 +516,15 @@ public class Process extends AbstractMojo {
 
       cleanOut(outDirPath);
 
-      for (final SplitName sn: getDeployedNames(deployDirPath,
-                                                null)) {
+      if (memoryStagingMb > 0) {
+        memOutDirPath = getMemoryStaging();
+      }
+
+      final List<SplitName> allDeployed =
+              timings.time(null, Timings.Phase.SCAN,
+                           () -> getDeployedNames(deployDirPath, null));
+
+      for (final SplitName sn: allDeployed) {
         if (!validSuffices.contains(sn.getType())) {
           continue;
         }
@@ -214,18 +540,59 @@ public class Process extends AbstractMojo {
                               sn.getVersion());
       }
 
-      if (earName != null) {
-        processEars();
-      } else if (warName != null) {
-        processWars();
-      } else if (sarName != null) {
-        processSars();
-      } else {
+      final List<Artifact> artifacts = resolveArtifacts();
+      if (artifacts.isEmpty()) {
         throw new MojoFailureException("No ear/war/sar name specified");
       }
 
+      final int failed = processArtifacts(artifacts);
+      if (failed > 0) {
+        throw new MojoFailureException(failed + " artifact(s) failed");
+      }
+
+    } catch (final MojoExecutionException | MojoFailureException me) {
+      throw me;
     } catch (final Throwable t) {
-      t.printStackTrace();
+      getLog().error("Deployment failed", t);
+    } finally {
+      finish();
+    }
+  }
+
+  /* Wait for removals, report and clean up - whether or not the
+     deployment succeeded
+   */
+  private void finish() {
+    if (cleaner != null) {
+      // Wait for replaced deployments to be removed
+      cleaner.shutdown();
+      try {
+        if (!cleaner.awaitTermination(1, TimeUnit.HOURS)) {
+          utils.warn("Timed out removing replaced deployments");
+        }
+      } catch (final InterruptedException ie) {
+        utils.warn("Interrupted removing replaced deployments");
+      }
+    }
+
+    // Don't leave pool threads behind when run as a mojo
+    utils.shutdown();
+
+    timings.report(utils);
+    utils.getClassifier().report();
+    if (pc.getStats() != null) {
+      pc.getStats().report(definedNames());
+    }
+    if (utils.debug()) {
+      utils.debug(String.valueOf(utils.getTemplates()));
+    }
+    if (timingsPath != null) {
+      try {
+        timings.writeJson(Paths.get(timingsPath));
+      } catch (final Throwable t) {
+        utils.warn("Unable to write timings to " + timingsPath +
+                           ": " + t);
+      }
     }
 
     if (cleanup) {
@@ -238,117 +605,324 @@ public class Process extends AbstractMojo {
         }
       }
     }
+
+    if (memOutDirPath != null) {
+      // Always - it's holding memory
+      final Path memPath = Paths.get(memOutDirPath);
+      try {
+        if (memPath.toFile().exists()) {
+          utils.deleteAll(memPath);
+        }
+      } catch (final Throwable t) {
+        utils.warn("Error trying to delete " + memPath);
+      }
+    }
   }
 
-  private void processEars() throws Throwable {
-    if (earName != null) {
-      utils.info("earName: " + earName);
+  /**
+   * @return names of all properties which might be used
+   */
+  private Set<String> definedNames() {
+    final Set<String> names = new TreeSet<>();
+
+    if (baseProps != null) {
+      names.addAll(baseProps.names());
     }
 
-    final List<PathAndName> toProcess = buildUpdateableList(earName,
-                                                            "ear");
-    if (toProcess == null) {
-      return;
+    for (final String name: System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("org.bedework.")) {
+        names.add(name);
+      }
     }
 
-    final List<Updateable> toUpdate = new ArrayList<>();
+    return names;
+  }
 
-    for (final PathAndName pan: toProcess) {
-      toUpdate.add(new Ear(utils, pan.getPath(), pan.getSplitName(), forWildfly, pc));
-    }
+  /** Resolve the list of artifact names to (name, type) pairs by
+   * looking in the input directory. A name may match more than one
+   * type - each is processed separately.
+   *
+   * @return list of artifacts to process
+   * @throws Throwable on error
+   */
+  private List<Artifact> resolveArtifacts() throws Throwable {
+    final List<Artifact> res = new ArrayList<>();
 
-    if (checkonly) {
-      return;
+    if (earName != null) {
+      res.add(new Artifact(earName, "ear", noEars));
     }
 
-    for (final Updateable upd: toUpdate) {
-      upd.update();
+    if (warName != null) {
+      res.add(new Artifact(warName, "war", noEars));
     }
 
-    deployFiles("ear");
-  }
+    if (sarName != null) {
+      res.add(new Artifact(sarName, "sar", noEars));
+    }
 
-  private void processWars() throws Throwable {
-    if (warName != null) {
-      utils.info("warName: " + warName);
+    if (artifactNames.isEmpty()) {
+      return res;
     }
 
-    final List<PathAndName> toProcess = buildUpdateableList(warName,
-                                                            "war");
-    if (toProcess == null) {
-      return;
+    final String[] names = utils.directory(inDirPath).list();
+
+    for (final String an: artifactNames) {
+      final Set<String> types = new TreeSet<>();
+
+      if (names != null) {
+        for (final String nm: names) {
+          final SplitName sn = SplitName.testName(nm, an);
+
+          if ((sn != null) && validSuffices.contains(sn.getType())) {
+            types.add(sn.getType());
+          }
+        }
+      }
+
+      if (types.isEmpty()) {
+        utils.warn("No ear/war/sar found for " + an);
+        res.add(new Artifact(an, null, noEars));
+        continue;
+      }
+
+      for (final String type: types) {
+        // As for setWarName - a war or sar is deployed on its own
+        res.add(new Artifact(an, type,
+                             noEars || !"ear".equals(type)));
+      }
     }
 
-    final List<Updateable> toUpdate = new ArrayList<>();
+    return res;
+  }
+
+  /** Process each artifact on a bounded pool of worker threads. Each
+   * artifact is unzipped, updated and deployed independently of the
+   * others.
+   *
+   * @param artifacts to process
+   * @return number of artifacts which failed
+   * @throws Throwable on error
+   */
+  private int processArtifacts(final List<Artifact> artifacts) throws Throwable {
+    final int poolSize = Math.max(1, Math.min(threads,
+                                              artifacts.size()));
+    utils.info("Processing " + artifacts.size() +
+                       " artifacts with " + poolSize + " threads");
+
+    final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+    final List<Future<ArtifactResult>> futures = new ArrayList<>();
+
+    try {
+      for (final Artifact a: artifacts) {
+        futures.add(pool.submit(() -> processArtifact(a)));
+      }
+
+      final List<ArtifactResult> results = new ArrayList<>();
+      for (final Future<ArtifactResult> f: futures) {
+        results.add(f.get());
+      }
 
-    for (final PathAndName pan: toProcess) {
-      toUpdate.add(new War(utils,
-                           pan.getPath(),
-                           pan.getSplitName(), null,
-                           noEars,
-                           pc,
-                           "org.bedework.app."));
+      return summarize(results);
+    } finally {
+      pool.shutdownNow();
     }
+  }
 
-    if (checkonly) {
-      return;
+  private ArtifactResult processArtifact(final Artifact a) {
+    if (a.type() == null) {
+      return new ArtifactResult(a, 0, 0, "not found");
     }
 
-    for (final Updateable upd: toUpdate) {
-      upd.update();
+    final ArtifactResult res = processArtifact(a, true);
+    if (res != null) {
+      return res;
     }
 
-    deployFiles("war");
+    /* The staging estimate does not allow for what the update adds -
+       copied wars and docs. Start again on disk.
+     */
+    utils.warn("Memory staging full processing " + a.name() +
+                       " - staging in " + outDirPath);
+    return processArtifact(a, false);
   }
 
-  private void processSars() throws Throwable {
-    if (sarName != null) {
-      utils.info("sarName: " + sarName);
+  /**
+   * @param a the artifact
+   * @param useMemory false to stage only on disk
+   * @return result or null if memory staging ran out of space
+   */
+  private ArtifactResult processArtifact(final Artifact a,
+                                         final boolean useMemory) {
+    final long start = System.currentTimeMillis();
+
+    // Trees staged in memory for this artifact and their sizes
+    final Map<Path, Long> memStaged = new HashMap<>();
+
+    // Every tree staged for this artifact
+    final List<Path> staged = new ArrayList<>();
+
+    try {
+      utils.info(a.type() + "Name: " + a.name());
+
+      final List<PathAndName> toProcess =
+              buildUpdateableList(a.name(), a.type(),
+                                  useMemory ? memStaged : null,
+                                  staged);
+      if (toProcess == null) {
+        return new ArtifactResult(a, 0,
+                                  System.currentTimeMillis() - start,
+                                  "no files");
+      }
+
+      /* Each artifact gets its own copy of the chain so that nothing
+         pushed while processing one is visible to any other.
+       */
+      final PropertiesChain apc = pc.copy();
+      final List<Updateable> toUpdate = new ArrayList<>();
+
+      timings.time(a.name(), Timings.Phase.CONSTRUCT, () -> {
+        for (final PathAndName pan: toProcess) {
+          // Record the properties each deployment uses
+          final SplitName sn = pan.getSplitName();
+          final PropertyDependencies deps =
+                  new PropertyDependencies(
+                          utils, Paths.get(pan.getPath(), sn.getName()));
+          dependencies.put(sn.getName(), deps);
+
+          final PropertiesChain ppc = apc.copy();
+          ppc.setDependencies(deps);
+
+          toUpdate.add(getUpdateable(pan, a, ppc));
+        }
+      });
+
+      if (checkonly) {
+        return new ArtifactResult(a, 0,
+                                  System.currentTimeMillis() - start,
+                                  null);
+      }
+
+      timings.time(a.name(), Timings.Phase.UPDATE, () -> {
+        for (final Updateable upd: toUpdate) {
+          upd.update();
+        }
+      });
+
+      flushHeld(staged);
+
+      final int deployed = deployFiles(toProcess, a.type());
+
+      return new ArtifactResult(a, deployed,
+                                System.currentTimeMillis() - start,
+                                null);
+    } catch (final Throwable t) {
+      if (!memStaged.isEmpty() && noSpace(t)) {
+        return null;
+      }
+
+      utils.error("Failed processing " + a.name() + ": " + t);
+      utils.error(t);
+      return new ArtifactResult(a, 0,
+                                System.currentTimeMillis() - start,
+                                String.valueOf(t.getMessage()));
+    } finally {
+      for (final Path p: staged) {
+        // Only anything left if we failed
+        utils.getHeldDescriptors().drop(p);
+      }
+      releaseMemoryStaging(memStaged);
     }
+  }
 
-    final List<PathAndName> toProcess =
-            buildUpdateableList(sarName, "sar");
-    if (toProcess == null) {
-      return;
+  /**
+   * @param t from processing
+   * @return true if t or a cause says a device is full
+   */
+  private static boolean noSpace(final Throwable t) {
+    for (Throwable c = t; c != null; c = c.getCause()) {
+      if ((c instanceof IOException) &&
+              (c.getMessage() != null) &&
+              c.getMessage().contains("No space left on device")) {
+        return true;
+      }
     }
 
-    final List<Updateable> toUpdate = new ArrayList<>();
+    return false;
+  }
 
-    for (final PathAndName pan: toProcess) {
-      toUpdate.add(new Sar(utils,
-                           pan.getPath(),
-                           pan.getSplitName(), null,
-                           noEars,
-                           pc,
-                           "org.bedework.app."));
+  private Updateable getUpdateable(final PathAndName pan,
+                                   final Artifact a,
+                                   final PropertiesChain apc) throws Throwable {
+    if ("ear".equals(a.type())) {
+      return new Ear(utils, pan.getPath(), pan.getSplitName(),
+                     forWildfly, apc);
     }
 
-    if (checkonly) {
-      return;
+    if ("war".equals(a.type())) {
+      return new War(utils,
+                     pan.getPath(),
+                     pan.getSplitName(), null,
+                     a.noEars(),
+                     apc,
+                     "org.bedework.app.");
     }
 
-    for (final Updateable upd: toUpdate) {
-      upd.update();
+    return new Sar(utils,
+                   pan.getPath(),
+                   pan.getSplitName(), null,
+                   a.noEars(),
+                   apc,
+                   "org.bedework.app.");
+  }
+
+  private int summarize(final List<ArtifactResult> results) {
+    int failed = 0;
+
+    utils.info("--------------------------------------------------");
+    utils.info(format("%-30s %-4s %8s %10s  %s",
+                      "artifact", "type", "deployed", "ms", "status"));
+
+    for (final ArtifactResult r: results) {
+      if (r.error() != null) {
+        failed++;
+      }
+
+      utils.info(format("%-30s %-4s %8d %10d  %s",
+                        r.artifact().name(),
+                        r.artifact().type() == null ?
+                                "?" : r.artifact().type(),
+                        r.deployed(),
+                        r.millis(),
+                        r.error() == null ? "ok" : r.error()));
     }
 
-    deployFiles("sar");
+    utils.info("--------------------------------------------------");
+    utils.info("Processed " + results.size() + " artifacts, " +
+                       failed + " failed");
+
+    return failed;
   }
 
   private List<PathAndName> buildUpdateableList(
           final String specificName,
-          final String suffix) throws Throwable {
+          final String suffix,
+          final Map<Path, Long> memStaged,
+          final List<Path> staged) throws Throwable {
     utils.info("Specific name = " + specificName);
 
-    final List<SplitName> splitNames = getInFiles(inDirPath,
-                                                  specificName,
-                                                  suffix);
+    final List<SplitName> splitNames =
+            timings.time(specificName, Timings.Phase.SCAN,
+                         () -> getInFiles(inDirPath, specificName,
+                                          suffix));
+    final List<SplitName> deployed =
+            timings.time(specificName, Timings.Phase.SCAN,
+                         () -> getDeployedNames(deployDirPath, suffix));
+
     if (splitNames == null) {
       utils.error("No names available. Terminating");
       return null;
     }
 
-    final List<SplitName> deployed = getDeployedNames(deployDirPath,
-                                                      suffix);
     if (deployed == null) {
       utils.error("No deploy directory available. Terminating");
       return null;
@@ -366,7 +940,7 @@ public class Process extends AbstractMojo {
 
       if (!noversion) {
         // See if this is a later version than the deployed file
-        if (!sn.laterThan(deployed)) {
+        if (!sn.laterThan(deployed) && !affectedByProps(sn)) {
           utils.warn("File " + sn.getName() + " not later than deployed file. Skipping");
           continue;
         }
@@ -380,7 +954,10 @@ public class Process extends AbstractMojo {
       utils.info("Processing " + sn.getName());
 
       final Path inPath = Paths.get(inDirPath, sn.getName());
-      final Path outPath = Paths.get(outDirPath, sn.getName());
+      final String stageDirPath = getStageDirPath(inPath, sn.getName(),
+                                                  memStaged);
+      final Path outPath = Paths.get(stageDirPath, sn.getName());
+      staged.add(outPath);
 
       if (delete) {
         final File outFile = outPath.toFile();
@@ -390,23 +967,43 @@ public class Process extends AbstractMojo {
         }
       }
 
-      if (inPath.toFile().isFile()) {
-        // Need to unzip it
-        unzip(inPath.toString(), outPath.toString());
-      } else {
-        utils.copy(inPath, outPath, false, null);
-      }
+      timings.time(specificName, Timings.Phase.UNZIP, () -> {
+        if (inPath.toFile().isFile()) {
+          // Need to unzip it
+          unzip(inPath.toString(), outPath.toString(),
+                extractSkipped(suffix), true);
+        } else {
+          utils.copy(inPath, outPath, false, null);
+        }
+      });
 
-      files.add(new PathAndName(outDirPath, sn));
+      files.add(new PathAndName(stageDirPath, sn));
     }
 
     return files;
   }
 
-  private void deployFiles(final String suffix) throws Throwable {
+  /** Write the descriptors held while extracting which were not
+   * written when updated.
+   *
+   * @param staged trees staged for an artifact
+   * @throws Throwable on error
+   */
+  private void flushHeld(final List<Path> staged) throws Throwable {
+    for (final Path p: staged) {
+      final int n = utils.getHeldDescriptors().flush(p);
+
+      if (utils.debug()) {
+        utils.debug("Wrote " + n + " held descriptors for " + p);
+      }
+    }
+  }
+
+  private int deployFiles(final List<PathAndName> toDeploy,
+                          final String suffix) throws Throwable {
     if (deployDirPath == null) {
       utils.info("No deployment path specified. Terminating");
-      return;
+      return 0;
     }
 
     int deployed = 0;
@@ -415,68 +1012,333 @@ public class Process extends AbstractMojo {
       utils.info("Processing for wildfly");
     }
 
-    for (final SplitName sn: getDeployedNames(outDirPath,
-                                              suffix)) {
+    final Path deployDir = Paths.get(deployDirPath);
+
+    for (final PathAndName pan: toDeploy) {
+      final SplitName sn = pan.getSplitName();
+      final Path outPath = Paths.get(pan.getPath(), sn.getName());
+      final Path deployPath = Paths.get(deployDirPath, sn.getName());
+
+      /* An unchanged tree can be left alone only if it's deployed under
+         this name and didn't fail. Adopting an earlier version renames
+         it and removes its markers so it has to be deployed again.
+       */
+      final boolean deployedOk = deployPath.toFile().isDirectory() &&
+              !(forWildfly && Paths.get(deployDirPath,
+                                        sn.getName() + ".failed")
+                                   .toFile().exists());
+
+      final DeploymentManifest oldMf =
+              timings.time(sn.getArtifactId(), Timings.Phase.DELETE,
+                           () -> removeDeployed(sn, deployDir,
+                                                deployPath));
+
+      final DeploymentManifest newMf;
+      if (incremental && !packed) {
+        newMf = timings.time(sn.getArtifactId(), Timings.Phase.MANIFEST,
+                             () -> DeploymentManifest.build(utils,
+                                                            outPath));
+      } else {
+        newMf = null;
+      }
+
+      final PropertyDependencies deps = dependencies.get(sn.getName());
+      if (deps != null) {
+        deps.store(deployDir, sn);
+      }
+
+      if (deployedOk && (newMf != null) && newMf.sameAs(oldMf)) {
+        utils.info("Unchanged " + sn.getName());
+        continue;
+      }
+
       utils.info("Deploying " + sn.getName());
       deployed++;
 
-      utils.deleteMatching(deployDirPath, sn);
-      final Path deployPath = Paths.get(deployDirPath, sn.getName());
+      timings.time(sn.getArtifactId(), Timings.Phase.DEPLOY,
+                   () -> deployFile(sn, outPath, deployPath,
+                                    oldMf, newMf));
+    }
 
-      if (delete) {
-        final File deployFile = deployPath.toFile();
+    utils.info("Deployed " + deployed + " " +
+                       suffix +
+                       "s");
 
-        if (deployFile.exists()) {
-          utils.deleteAll(deployPath);
-        }
+    return deployed;
+  }
+
+  /** Remove what is deployed for an artifact before it is replaced.
+   * Incremental deployment keeps it to be updated in place.
+   *
+   * @param sn the artifact
+   * @param deployDir the deployment directory
+   * @param deployPath where the artifact is deployed
+   * @return manifest of the deployed artifact for incremental
+   *         deployment, otherwise null
+   * @throws Throwable on error
+   */
+  private DeploymentManifest removeDeployed(final SplitName sn,
+                                            final Path deployDir,
+                                            final Path deployPath)
+          throws Throwable {
+    if (packed) {
+      // The deployed archive is replaced by a rename
+      utils.deleteMatching(deployDirPath, sn, sn.getName());
+      DeploymentManifest.delete(deployDir, sn.getName());
+      return null;
+    }
+
+    if (incremental) {
+      return adoptDeployed(sn, deployPath);
+    }
+
+    if (atomic) {
+      // The deployed tree is replaced when the new one is swapped in
+      utils.deleteMatching(deployDirPath, sn, sn.getName());
+      DeploymentManifest.delete(deployDir, sn.getName());
+      return null;
+    }
+
+    utils.deleteMatching(deployDirPath, sn);
+
+    if (delete) {
+      final File deployFile = deployPath.toFile();
+
+      if (deployFile.exists()) {
+        utils.deleteAll(deployPath);
       }
+    }
 
-      if (forWildfly) {
-        // Remove any deployment directive files
-        Path thePath = Paths.get(deployDirPath, sn.getName() + ".failed");
-        File theFile = thePath.toFile();
+    DeploymentManifest.delete(deployDir, sn.getName());
+    return null;
+  }
 
-        if (theFile.exists()) {
-          if (!theFile.delete()) {
-            utils.warn("Unable to delete file " + theFile);
-          }
-        }
+  /** Write one artifact into the deployment directory. Anything it
+   * replaces has already been dealt with.
+   *
+   * @param sn name of the artifact
+   * @param outPath the staged, updated artifact
+   * @param deployPath where it goes
+   * @param oldMf manifest of what's deployed there now or null
+   * @param newMf manifest of the staged artifact or null
+   * @throws Throwable on error
+   */
+  private void deployFile(final SplitName sn,
+                          final Path outPath,
+                          final Path deployPath,
+                          final DeploymentManifest oldMf,
+                          final DeploymentManifest newMf) throws Throwable {
+    final Path deployDir = deployPath.getParent();
 
-        thePath = Paths.get(deployDirPath, sn.getName() + ".deployed");
-        theFile = thePath.toFile();
+    final Path stagePath;
+    if (packed) {
+      stagePath = deployDir.resolve("." + sn.getName() + ".packing");
 
-        if (theFile.exists()) {
-          if (!theFile.delete()) {
-            utils.warn("Unable to delete file " + theFile);
-          }
+      final Path inPath = Paths.get(inDirPath, sn.getName());
+      final PackedArchive pa = new PackedArchive(utils);
+      try {
+        pa.pack(outPath,
+                inPath.toFile().isFile() ? inPath : null,
+                stagePath);
+      } catch (final Throwable t) {
+        // Don't leave a partial archive in the deployments directory
+        Files.deleteIfExists(stagePath);
+        throw t;
+      }
+      utils.info("Packed " + pa.getRawEntries() + " raw entries, " +
+                         pa.getDeflatedEntries() + " compressed");
+      timings.count(timings.current(), Files.size(stagePath),
+                    pa.getRawEntries() + pa.getDeflatedEntries());
+    } else if (atomic && !incremental) {
+      stagePath = deployDir.resolve("." + sn.getName() + ".staging");
+      if (stagePath.toFile().exists()) {
+        utils.deleteAll(stagePath);
+      }
+
+      utils.copy(outPath, stagePath, false, null);
+    } else {
+      stagePath = null;
+    }
+
+    if (forWildfly) {
+      removeMarkers(sn.getName());
+    }
+
+    if (packed) {
+      if (deployPath.toFile().isDirectory()) {
+        utils.deleteAll(deployPath);
+      }
+      Files.move(stagePath, deployPath, ATOMIC_MOVE, REPLACE_EXISTING);
+    } else if (stagePath != null) {
+      swapIn(stagePath, deployPath);
+    } else if (oldMf != null) {
+      newMf.sync(outPath, deployPath, oldMf);
+      utils.info("Wrote " + newMf.getWritten() + " files (" +
+                         newMf.getBytesWritten() + " bytes), removed " +
+                         newMf.getRemoved());
+      timings.count(timings.current(), newMf.getBytesWritten(),
+                    newMf.getWritten());
+    } else {
+      utils.copy(outPath, deployPath, false, null);
+    }
+
+    if (newMf != null) {
+      newMf.store(deployDir, sn.getName());
+    }
+
+    if (forWildfly) {
+      final File doDeploy = Paths.get(deployDirPath,
+                                      sn.getName() + ".dodeploy").toFile();
+      if (!doDeploy.createNewFile()) {
+        utils.warn("Unable to create file " + doDeploy);
+      }
+    }
+  }
+
+  /** Only called for an artifact no later than the deployed one.
+   *
+   * @param sn the artifact
+   * @return true if asked to process deployments using changed
+   *         properties and it used one, or we can't tell
+   */
+  private boolean affectedByProps(final SplitName sn) {
+    if (!propsChanged) {
+      return false;
+    }
+
+    if (changedProps == null) {
+      return true;
+    }
+
+    final PropertyDependencies deps =
+            PropertyDependencies.load(utils, Paths.get(deployDirPath), sn);
+    if (deps == null) {
+      utils.info("No property uses recorded for " + sn.getName() +
+                         " - processing");
+      return true;
+    }
+
+    final Set<String> affected = deps.affected(changedProps);
+    if (affected.isEmpty()) {
+      return false;
+    }
+
+    utils.info("Changed properties used by " + sn.getName() +
+                       " in " + affected.size() + " places:");
+    for (final String loc: affected) {
+      utils.info("  " + loc);
+    }
+
+    return true;
+  }
+
+  /** Find a deployed version of the artifact with a manifest we can
+   * update in place. If it has a different name (an earlier version)
+   * it is renamed. Any other versions are removed, as is a deployed
+   * tree with no manifest as we can't know what's in it.
+   *
+   * @param sn the artifact being deployed
+   * @param deployPath where it will be deployed
+   * @return manifest of the deployed tree or null for none
+   * @throws Throwable on error
+   */
+  private DeploymentManifest adoptDeployed(final SplitName sn,
+                                           final Path deployPath) throws Throwable {
+    final Path deployDir = Paths.get(deployDirPath);
+    DeploymentManifest mf = null;
+
+    if (deployPath.toFile().isDirectory()) {
+      mf = DeploymentManifest.load(utils, deployDir, sn.getName());
+    } else {
+      for (final SplitName dsn: getDeployedNames(deployDirPath,
+                                                 sn.getType())) {
+        if (!dsn.sameAs(sn) ||
+                !deployDir.resolve(dsn.getName()).toFile().isDirectory()) {
+          continue;
         }
 
-        thePath = Paths.get(deployDirPath, sn.getName() + ".dodeploy");
-        theFile = thePath.toFile();
+        mf = DeploymentManifest.load(utils, deployDir, dsn.getName());
+        if (mf == null) {
+          continue;
+        }
 
-        if (theFile.exists()) {
-          if (!theFile.delete()) {
-            utils.warn("Unable to delete file " + theFile);
-          }
+        utils.info("Updating " + dsn.getName() + " in place");
+        if (forWildfly) {
+          removeMarkers(dsn.getName());
         }
 
+        Files.move(deployDir.resolve(dsn.getName()), deployPath);
+        DeploymentManifest.rename(deployDir, dsn.getName(),
+                                  sn.getName());
+        break;
       }
+    }
 
-      final Path outPath = Paths.get(outDirPath, sn.getName());
-      utils.copy(outPath, deployPath, false, null);
+    if ((mf == null) && deployPath.toFile().exists()) {
+      utils.deleteAll(deployPath);
+    }
 
-      if (forWildfly) {
-        final File doDeploy = Paths.get(deployDirPath,
-                                        sn.getName() + ".dodeploy").toFile();
-        if (!doDeploy.createNewFile()) {
-          utils.warn("Unable to create file " + doDeploy);
-        }
+    utils.deleteMatching(deployDirPath, sn, sn.getName());
+
+    return mf;
+  }
+
+  /** Replace the deployed tree with the staged one. Both are in the
+   * deployment directory so this is a pair of renames. The replaced
+   * tree is removed in the background.
+   *
+   * @param stagePath the new tree
+   * @param deployPath the deployed tree
+   * @throws Throwable on error
+   */
+  private void swapIn(final Path stagePath,
+                      final Path deployPath) throws Throwable {
+    Path oldPath = null;
+
+    if (deployPath.toFile().exists()) {
+      oldPath = deployPath.resolveSibling(
+              "." + deployPath.getFileName() + ".old");
+      if (oldPath.toFile().exists()) {
+        utils.deleteAll(oldPath);
       }
+
+      Files.move(deployPath, oldPath, ATOMIC_MOVE);
     }
 
-    utils.info("Deployed " + deployed + " " +
-                       suffix +
-                       "s");
+    Files.move(stagePath, deployPath, ATOMIC_MOVE);
+
+    if (oldPath == null) {
+      return;
+    }
+
+    final Path toDelete = oldPath;
+    synchronized (this) {
+      if (cleaner == null) {
+        cleaner = Executors.newSingleThreadExecutor();
+      }
+    }
+
+    cleaner.submit(() -> {
+      try {
+        utils.deleteAll(toDelete);
+      } catch (final Throwable t) {
+        utils.warn("Error trying to delete " + toDelete);
+      }
+    });
+  }
+
+  private void removeMarkers(final String name) {
+    // Remove any deployment directive files
+    for (final String marker: wildflyMarkers) {
+      final File theFile = Paths.get(deployDirPath,
+                                     name + marker).toFile();
+
+      if (theFile.exists()) {
+        if (!theFile.delete()) {
+          utils.warn("Unable to delete file " + theFile);
+        }
+      }
+    }
   }
 
   private Path getTempDirectory(final String prefix) throws Throwable {
@@ -522,70 +1384,181 @@ public class Process extends AbstractMojo {
           utils.info("Found url " + dcUri);
         }
 
-        final String zipName = dc.displayName + ".zip";
-
-        final Path zipPath = downloadPath.resolve(zipName);
-        final OutputStream zipOut = new FileOutputStream(zipPath.toFile());
+        /* An ear/war/sar is saved under its own name in the input
+           directory and extracted once, straight into the out
+           directory, when it is processed. Anything else is taken to
+           be a zipped bundle and is expanded here.
+         */
+        final SplitName dcSn = SplitName.testName(dc.displayName);
+        final boolean archive = (dcSn != null) &&
+                validSuffices.contains(dcSn.getType());
+
+        final Path zipPath;
+        if (archive) {
+          zipPath = expandPath.resolve(dc.displayName);
+        } else {
+          zipPath = downloadPath.resolve(dc.displayName + ".zip");
+        }
 
-        if (!NetUtil.getBinary(cl,
-                               dcUri,
-                               zipOut)) {
-          utils.warn("Unable to fetch " + dcUri);
-          return null;
+        try (final OutputStream zipOut =
+                     new FileOutputStream(zipPath.toFile())) {
+          if (!NetUtil.getBinary(cl,
+                                 dcUri,
+                                 zipOut)) {
+            utils.warn("Unable to fetch " + dcUri);
+            return null;
+          }
         }
 
-        unzip(zipPath.toAbsolutePath().toString(),
-              sourceEars);
+        if (!archive) {
+          unzip(zipPath.toAbsolutePath().toString(),
+                sourceEars, null, false);
+        }
       }
     }
 
     return sourceEars;
   }
 
+  /** Entries we would only delete after extraction.
+   *
+   * @param suffix type of archive
+   * @return entry names not to extract or null
+   */
+  private Set<String> extractSkipped(final String suffix) {
+    if (forWildfly && "ear".equals(suffix)) {
+      return Set.of("META-INF/jboss-service.xml");
+    }
+
+    return null;
+  }
+
+  /** Extract an archive into the staging directory. This is the only
+   * time the bulk of an artifact is written before it is deployed.
+   *
+   * <p>When staging, the descriptors the Updateable classes edit are
+   * held in memory as they are extracted, read from there and written
+   * once, edited or not. Whatever is still held after the update is
+   * written by flushHeld.</p>
+   *
+   * @param zipPath archive to extract
+   * @param destDir directory to extract it into
+   * @param skip entry names not to extract or null
+   * @param hold true to hold descriptors rather than write them
+   * @throws Throwable on error
+   */
   private void unzip(final String zipPath,
-                     final String destDir) throws Throwable {
-    final byte[] buffer = new byte[4096];
+                     final String destDir,
+                     final Set<String> skip,
+                     final boolean hold) throws Throwable {
+    final ArchiveExtractor ae = new ArchiveExtractor(utils);
+
+    ae.setThreads(unzipThreads);
+    ae.setSkip(skip);
+    ae.setHoldDescriptors(hold);
+    ae.extract(Paths.get(zipPath), Paths.get(destDir));
+  }
+
+  /**
+   * @return path of a temp directory in memory or null if unavailable
+   * @throws Throwable on error
+   */
+  private String getMemoryStaging() throws Throwable {
+    final File memDir = new File(memoryStagingPath);
+
+    if (!memDir.isDirectory()) {
+      utils.warn("No memory staging directory " + memoryStagingPath +
+                         ". Staging in " + outDirPath);
+      return null;
+    }
 
-    final FileInputStream fis = new FileInputStream(zipPath);
-    final ZipInputStream zis = new ZipInputStream(fis);
-    ZipEntry ze = zis.getNextEntry();
-    while(ze != null){
-      final File newFile = new File(destDir + File.separator +
-                                            ze.getName());
+    // Not a temp dir - deleted whether or not we clean up
+    final Path tempPath = Files.createTempDirectory(memDir.toPath(),
+                                                    "bwstage");
 
-      if (ze.isDirectory()) {
-        if (getLog().isDebugEnabled()) {
-          utils.info("Directory entry " + newFile.getAbsolutePath());
+    utils.info("staging: " + tempPath + " up to " +
+                       memoryStagingMb + "MB");
+
+    return tempPath.toString();
+  }
+
+  /** Choose where to expand the input. Memory staging is used while
+   * the total expanded size of the artifacts in progress stays within
+   * the limit.
+   *
+   * @param inPath input archive or directory
+   * @param name of the expanded tree
+   * @param memStaged trees staged in memory - updated with this one.
+   *                  Null to stage on disk.
+   * @return directory path
+   * @throws Throwable on error
+   */
+  private String getStageDirPath(final Path inPath,
+                                 final String name,
+                                 final Map<Path, Long> memStaged)
+          throws Throwable {
+    if ((memOutDirPath == null) || (memStaged == null)) {
+      return outDirPath;
+    }
+
+    final long size = expandedSize(inPath);
+    final long limit = memoryStagingMb * 1024L * 1024L;
+
+    if (memoryStaged.addAndGet(size) <= limit) {
+      memStaged.put(Paths.get(memOutDirPath, name), size);
+      return memOutDirPath;
+    }
+
+    memoryStaged.addAndGet(-size);
+    utils.info("Memory staging full - staging " +
+                       inPath.getFileName() + " in " + outDirPath);
+    return outDirPath;
+  }
+
+  /** Delete trees staged in memory once the artifact is done with and
+   * give their space back for others.
+   *
+   * @param memStaged trees staged in memory and their sizes
+   */
+  private void releaseMemoryStaging(final Map<Path, Long> memStaged) {
+    for (final Map.Entry<Path, Long> me: memStaged.entrySet()) {
+      final Path path = me.getKey();
+
+      try {
+        if (path.toFile().exists()) {
+          utils.deleteAll(path);
         }
+      } catch (final Throwable t) {
+        utils.warn("Error trying to delete " + path);
+      }
 
-        zis.closeEntry();
-        ze = zis.getNextEntry();
-        continue;
+      memoryStaged.addAndGet(-me.getValue());
+    }
+  }
+
+  private long expandedSize(final Path inPath) throws Throwable {
+    if (!inPath.toFile().isFile()) {
+      try (final Stream<Path> paths = Files.walk(inPath)) {
+        return paths.filter(Files::isRegularFile)
+                    .mapToLong(p -> p.toFile().length())
+                    .sum();
       }
+    }
 
-      if (getLog().isDebugEnabled()) {
-        utils.info("Unzip " + newFile.getAbsolutePath());
+    long size = 0;
+    try (final ZipFile zf = new ZipFile(inPath.toFile())) {
+      final Enumeration<? extends ZipEntry> zes = zf.entries();
+      while (zes.hasMoreElements()) {
+        final ZipEntry ze = zes.nextElement();
+        if (ze.getSize() > 0) {
+          size += ze.getSize();
+        } else if (ze.getCompressedSize() > 0) {
+          size += ze.getCompressedSize();
+        }
       }
+    }
 
-      /* Zip entry has relative path which may require sub directories
-       */
-      //noinspection ResultOfMethodCallIgnored
-      new File(newFile.getParent()).mkdirs();
-      final FileOutputStream fos = new FileOutputStream(newFile);
-      int len;
-      while ((len = zis.read(buffer)) > 0) {
-        fos.write(buffer, 0, len);
-      }
-      fos.close();
-      //close this ZipEntry
-      zis.closeEntry();
-      ze = zis.getNextEntry();
-    }
-
-    //close last ZipEntry
-    zis.closeEntry();
-    zis.close();
-    fis.close();
+    return size;
   }
 
   private void cleanOut(final String outDirPath) throws Throwable {
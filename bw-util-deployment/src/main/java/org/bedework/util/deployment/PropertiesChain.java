@@ -1,12 +1,15 @@
 package org.bedework.util.deployment;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Allow stacking of Property objects. Generally the bottom of the
  * stack is the full set of unmodified properties.
@@ -56,60 +59,309 @@ import java.util.Set;
  * <p>In this was we can define properties that are scoped to any level
  * </p>
  *
+ * <p>Levels are {@link PropertyStore}s. A filtered level is a view of
+ * the level below rather than a copy, so pushing one costs nothing
+ * however many properties there are. A Properties object is frozen
+ * into an immutable level when it is pushed, so lookups never lock
+ * and later changes to it are not seen.</p>
+ *
+ * <p>The stack is an immutable linked list of levels, each pointing
+ * at the one below. Copying a chain copies only the reference to its
+ * top and pushing on a copy adds a level above the shared ones, so
+ * sibling chains - the wars in an ear - share everything below their
+ * own levels.</p>
+ *
+ * <p>If a {@link PropertyDependencies} is set every lookup records
+ * the defined names which could affect its result: the name at each
+ * level down to where it is found, and the same for each token in the
+ * value found.</p>
+ *
+ * <p>The result of a lookup, fully expanded and with the level it was
+ * found at, is remembered for each level of the stack the first time
+ * the name is looked up. Later lookups of the name are a single probe
+ * and a value is only expanded once however often it, or anything
+ * referring to it, is used. Nothing is resolved until it is asked
+ * for. A value which refers back to itself, directly or through
+ * others, is reported as an error naming the path when it is looked
+ * up rather than recursing until the stack overflows.</p>
+ *
+ * <p>Token statistics count every lookup. Tokens inside a value are
+ * counted, or counted as dropped, when the value is expanded.</p>
+ *
  * @author douglm
  */
 public class PropertiesChain {
-  private final Deque<Properties> pstack = new ArrayDeque<>();
+  /* A name looked up on the stack. level and definedName are where
+     it was found - value is null if it is not in the stack. */
+  private record Resolved(String value,
+                          int level,
+                          String definedName) {}
+
+  private static final Resolved notInChain = new Resolved(null, 0, null);
+
+  /* One level of the stack. resolved holds the lookups and sources
+     the defined names each lookup depends on, for the stack as it is
+     at this level - shared by every chain including it. Level numbers
+     count up from 1 at the bottom. */
+  private record Level(PropertyStore store,
+                       Map<String, Resolved> resolved,
+                       Map<String, Set<String>> sources,
+                       Level below,
+                       int number) {}
+
+  private Level top;
+
+  /* Names being expanded on this thread, innermost first */
+  private static final ThreadLocal<Deque<String>> expanding =
+          ThreadLocal.withInitial(ArrayDeque::new);
+
+  private TokenStats stats;
+
+  private PropertyDependencies dependencies;
+
+  /**
+   * @param val to count lookups or null for none. Copies share it.
+   */
+  public void setStats(final TokenStats val) {
+    stats = val;
+  }
+
+  public TokenStats getStats() {
+    return stats;
+  }
+
+  /**
+   * @param val to record the properties used or null for none. Copies
+   *            share it.
+   */
+  public void setDependencies(final PropertyDependencies val) {
+    dependencies = val;
+  }
+
+  public PropertyDependencies getDependencies() {
+    return dependencies;
+  }
 
   public PropertiesChain copy() {
     final PropertiesChain pc = new PropertiesChain();
-
-    final Iterator<Properties> i = pstack.descendingIterator();
-    while (i.hasNext()) {
-      pc.push(i.next());
-    }
+    pc.stats = stats;
+    pc.dependencies = dependencies;
+    pc.top = top;
 
     return pc;
   }
 
+  /**
+   * @param props to push - copied into an immutable level
+   */
   public void push(final Properties props) {
-    pstack.push(props);
+    push(PropertyStore.of(props));
+  }
+
+  /**
+   * @param store to push
+   */
+  public void push(final PropertyStore store) {
+    top = new Level(store,
+                    new ConcurrentHashMap<>(),
+                    new ConcurrentHashMap<>(),
+                    top,
+                    (top == null) ? 1 : top.number() + 1);
   }
 
   public void pop() {
-    pstack.pop();
+    top = top.below();
   }
 
   public Set<String> topNames() {
-    return pstack.peek().stringPropertyNames();
+    return top.store().names();
   }
 
   public String get(final String name) {
+    if (dependencies != null) {
+      dependencies.used(sources(name));
+    }
+
+    if (stats == null) {
+      return lookup(name);
+    }
+
+    final long start = stats.start();
+    try {
+      return lookup(name);
+    } finally {
+      stats.end(start);
+    }
+  }
+
+  private String lookup(final String name) {
+    if (top == null) {
+      return systemProperty(name);
+    }
+
+    final Map<String, Resolved> resolved = top.resolved();
+    Resolved r = resolved.get(name);
+
+    if (r == null) {
+      r = resolve(name);
+      resolved.put(name, r);
+    }
+
+    if (r.value() == null) {
+      return systemProperty(name);
+    }
+
+    if (stats != null) {
+      stats.hit(name, r.level(), r.definedName());
+    }
+
+    return r.value();
+  }
+
+  /* Walk the stack to find name and expand its value */
+  private Resolved resolve(final String name) {
     String pname = name;
-    int level = pstack.size();
 
-    for (final Properties props: pstack) {
+    for (Level l = top; l != null; l = l.below()) {
+      final PropertyStore store = l.store();
+      final int level = l.number();
+
       if ((level == 1) && pname.startsWith("app.")) {
         pname = "org.bedework.global" + pname.substring(3);
       }
 
-      final String s = props.getProperty(pname);
+      final String s = store.get(pname);
       if (s != null) {
-        return replace(s);
+        return new Resolved(expand(name, s),
+                            level, store.definedName(pname));
+      }
+    }
+
+    return notInChain;
+  }
+
+  /* The defined names which could change the result of looking up
+     name on this stack
+   */
+  private Set<String> sources(final String name) {
+    final Map<String, Set<String>> memo = top.sources();
+    final Set<String> cached = memo.get(name);
+    if (cached != null) {
+      return cached;
+    }
+
+    final Set<String> res = new HashSet<>();
+    addSources(name, res, new HashSet<>());
+
+    final Set<String> sources = Set.copyOf(res);
+    memo.put(name, sources);
+    return sources;
+  }
+
+  private void addSources(final String name,
+                          final Set<String> res,
+                          final Set<String> seen) {
+    if (!seen.add(name)) {
+      // A cycle - reported when it is expanded
+      return;
+    }
+
+    String pname = name;
+
+    for (Level l = top; l != null; l = l.below()) {
+      final PropertyStore store = l.store();
+
+      if ((l.number() == 1) && pname.startsWith("app.")) {
+        pname = "org.bedework.global" + pname.substring(3);
+      }
+
+      final String defined = store.definedName(pname);
+      if (defined != null) {
+        res.add(defined);
+      }
+
+      final String s = store.get(pname);
+      if (s != null) {
+        // Tokens in the value are looked up from the top again
+        for (final String tname: tokenNames(s)) {
+          addSources(tname, res, seen);
+        }
+        return;
+      }
+    }
+
+    // Not in the chain - a system property may be used
+    res.add(name);
+  }
+
+  /* Names of the tokens in val as replace finds them */
+  private static List<String> tokenNames(final String val) {
+    final List<String> names = new ArrayList<>();
+
+    int pos = val.indexOf("${");
+    while (pos >= 0) {
+      final int end = val.indexOf("}", pos);
+      if (end < 0) {
+        break;
       }
 
-      level--;
+      names.add(val.substring(pos + 2, end).trim());
+      pos = val.indexOf("${", end + 1);
     }
 
+    return names;
+  }
+
+  /* Expand the value found for name */
+  private String expand(final String name,
+                        final String val) {
+    if (val.indexOf("${") < 0) {
+      return val;
+    }
+
+    final Deque<String> path = expanding.get();
+
+    if (path.contains(name)) {
+      final StringBuilder sb = new StringBuilder(name);
+      for (final String pname: path) {
+        sb.insert(0, " -> ").insert(0, pname);
+        if (pname.equals(name)) {
+          break;
+        }
+      }
+
+      throw new RuntimeException("Property value refers to itself: " +
+                                         sb);
+    }
+
+    path.push(name);
+    try {
+      return replace(val);
+    } finally {
+      path.pop();
+    }
+  }
+
+  private String systemProperty(final String name) {
     // Try for a system property
 
-    return System.getProperty(name);
+    final String s = System.getProperty(name);
+
+    if (stats != null) {
+      if (s == null) {
+        stats.miss(name);
+      } else {
+        stats.hit(name, 0, name);
+      }
+    }
+
+    return s;
   }
 
   @SuppressWarnings("unused")
   public String getDeep(final String name) {
-    for (final Properties props: pstack) {
-      final String s = props.getProperty(name);
+    for (Level l = top; l != null; l = l.below()) {
+      final String s = l.store().get(name);
       if (s != null) {
         return replace(s);
       }
@@ -161,10 +413,13 @@ public class PropertiesChain {
         break;
       }
 
-      final String pval = get(val.substring(pos + 2, end).trim());
+      final String tname = val.substring(pos + 2, end).trim();
+      final String pval = get(tname);
 
       if (pval != null) {
         sb.append(pval);
+      } else if (stats != null) {
+        stats.dropped(tname);
       }
 
       segStart = end + 1;
@@ -184,9 +439,15 @@ public class PropertiesChain {
     return sb.toString();
   }
 
+  /** Push a view of the top level selecting the properties whose
+   * names start with prefix, renamed to start with newPrefix.
+   *
+   * @param prefix to select
+   * @param newPrefix to replace it with
+   */
   public void pushFiltered(final String prefix,
                            final String newPrefix) {
-    push(Utils.filter(pstack.peek(), prefix, newPrefix));
+    push(top.store().filter(prefix, newPrefix));
   }
 
   public void debugList(final Utils utils,
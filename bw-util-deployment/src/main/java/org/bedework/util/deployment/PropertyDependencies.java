@@ -0,0 +1,208 @@
+package org.bedework.util.deployment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Which properties were used where in a deployment. Lookups made
+ * while updating an xml file or copying a file with token replacement
+ * are recorded against that file, and the element or attribute for
+ * xml. Any other lookup, e.g. one which decides what is copied, is
+ * recorded against the whole deployment.
+ *
+ * <p>It is stored as a hidden file alongside the deployment so a later
+ * run, given the properties which changed, can tell whether the
+ * deployment is affected. The stored form is one line per use:<br/>
+ * &lt;defined-property-name&gt; &lt;location&gt;</p>
+ *
+ * <p>Locations are relative to the root of the deployment, e.g.
+ * "WEB-INF/jboss-web.xml#security-domain" or "docs/index.html". A
+ * location of "*" is the whole deployment.</p>
+ *
+ * @author douglm
+ */
+public class PropertyDependencies extends BaseClass {
+  /** Location of lookups not made for any one file */
+  public static final String wholeDeployment = "*";
+
+  /** Restores the previous location when closed */
+  public static class Location implements AutoCloseable {
+    private final String previous;
+
+    Location(final String previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      location.set(previous);
+    }
+  }
+
+  private static final ThreadLocal<String> location = new ThreadLocal<>();
+
+  private final Path root;
+
+  /* Defined name to locations */
+  private final Map<String, Set<String>> uses =
+          new ConcurrentSkipListMap<>();
+
+  /**
+   * @param utils for logging
+   * @param root of the deployment being built - locations are
+   *             relative to this
+   */
+  public PropertyDependencies(final Utils utils,
+                              final Path root) {
+    super(utils);
+    this.root = (root == null) ? null : root.toAbsolutePath().normalize();
+  }
+
+  /**
+   * @param name of the deployment
+   * @return name of the file holding its property uses
+   */
+  public static String dependenciesName(final SplitName name) {
+    // Not versioned - a new version replaces the old uses
+    return "." + name.getArtifactId() + "." + name.getType() +
+            ".propdeps";
+  }
+
+  /** Record lookups made on this thread until closed against a file.
+   *
+   * @param file being updated or written
+   * @param element name of element or attribute or null for the file
+   * @return to close when done
+   */
+  public Location at(final Path file,
+                     final String element) {
+    final Location l = new Location(location.get());
+
+    final Path p = file.toAbsolutePath().normalize();
+
+    String loc = p.toString();
+    if ((root != null) && p.startsWith(root)) {
+      loc = root.relativize(p).toString().replace('\\', '/');
+    }
+
+    if (element != null) {
+      loc = loc + "#" + element;
+    }
+
+    location.set(loc);
+    return l;
+  }
+
+  /**
+   * @param names defined property names used at the current location
+   */
+  public void used(final Set<String> names) {
+    String loc = location.get();
+    if (loc == null) {
+      loc = wholeDeployment;
+    }
+
+    for (final String name: names) {
+      uses.computeIfAbsent(name, k -> ConcurrentHashMap.newKeySet())
+          .add(loc);
+    }
+  }
+
+  /**
+   * @param changed names of properties whose values changed
+   * @return locations which used any of them
+   */
+  public Set<String> affected(final Set<String> changed) {
+    final Set<String> res = new TreeSet<>();
+
+    for (final String name: changed) {
+      final Set<String> locs = uses.get(name);
+
+      if (locs != null) {
+        res.addAll(locs);
+      }
+    }
+
+    return res;
+  }
+
+  /** Load the stored uses for a deployment.
+   *
+   * @param utils for logging
+   * @param deployDir the deployment directory
+   * @param name of the deployment
+   * @return uses or null if none or unreadable
+   */
+  public static PropertyDependencies load(final Utils utils,
+                                          final Path deployDir,
+                                          final SplitName name) {
+    final Path depsPath = deployDir.resolve(dependenciesName(name));
+
+    if (!Files.isRegularFile(depsPath)) {
+      return null;
+    }
+
+    final PropertyDependencies deps =
+            new PropertyDependencies(utils, null);
+
+    try (final BufferedReader rdr =
+                 Files.newBufferedReader(depsPath,
+                                         StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = rdr.readLine()) != null) {
+        final String[] parts = line.split(" ", 2);
+
+        if (parts.length != 2) {
+          utils.warn("Bad property use line in " + depsPath +
+                             ": " + line);
+          return null;
+        }
+
+        deps.uses.computeIfAbsent(parts[0],
+                                  k -> ConcurrentHashMap.newKeySet())
+                 .add(parts[1]);
+      }
+    } catch (final Throwable t) {
+      utils.warn("Unable to read property uses " + depsPath + ": " + t);
+      return null;
+    }
+
+    return deps;
+  }
+
+  /**
+   * @param deployDir the deployment directory
+   * @param name of the deployment
+   * @throws Throwable on error
+   */
+  public void store(final Path deployDir,
+                    final SplitName name) throws Throwable {
+    final Path depsPath = deployDir.resolve(dependenciesName(name));
+    final Path temp = depsPath.resolveSibling(depsPath.getFileName() +
+                                                      ".tmp");
+
+    try (final BufferedWriter wtr =
+                 Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      for (final Map.Entry<String, Set<String>> me: uses.entrySet()) {
+        for (final String loc: new TreeSet<>(me.getValue())) {
+          wtr.write(me.getKey());
+          wtr.write(' ');
+          wtr.write(loc);
+          wtr.newLine();
+        }
+      }
+    }
+
+    Files.move(temp, depsPath, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+}
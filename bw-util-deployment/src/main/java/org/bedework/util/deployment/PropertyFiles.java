@@ -0,0 +1,287 @@
+package org.bedework.util.deployment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Loads a list of property files, e.g. global, per-ear and per-host,
+ * and merges them into the base level of a {@link PropertiesChain}.
+ * A property in a later file overrides one in an earlier file.
+ *
+ * <p>The merged result is kept in memory, so a long running process
+ * loading the same files again does no work, and may also be stored
+ * as a binary snapshot so a later run can skip parsing. Both are
+ * keyed by the path, size and modification time of every file - if
+ * any file changes they are ignored and the files are parsed again.</p>
+ *
+ * <p>The names whose values differ from the last load, in memory or
+ * from the snapshot, are available after loading so that only
+ * deployments using them need be processed again.</p>
+ *
+ * <p>The snapshot holds the names in order with their values, each as
+ * length prefixed UTF-8, after a header listing the files.</p>
+ *
+ * @author douglm
+ */
+public class PropertyFiles extends BaseClass {
+  private static final int magic = 0x42575043; // "BWPC"
+
+  private static final int version = 1;
+
+  private record Stamp(String path,
+                       long size,
+                       long modified) {}
+
+  private record Loaded(List<Stamp> stamps,
+                        PropertyStore store) {}
+
+  /* current is false if the files changed since it was written */
+  private record Snapshot(boolean current,
+                          PropertyStore store) {}
+
+  /* Keyed by the list of paths */
+  private static final Map<List<String>, Loaded> loaded =
+          new ConcurrentHashMap<>();
+
+  /* Forget what was loaded, as if in a new process - for tests */
+  static void clearLoaded() {
+    loaded.clear();
+  }
+
+  private Set<String> changed;
+
+  public PropertyFiles(final Utils utils) {
+    super(utils);
+  }
+
+  /**
+   * @return names of properties added, removed or changed since the
+   *         files were last loaded. null if there is nothing to compare
+   *         against.
+   */
+  public Set<String> getChanged() {
+    return changed;
+  }
+
+  /**
+   * @param paths of property files, lowest precedence first
+   * @param cachePath binary snapshot to use and update - null for none
+   * @return merged properties
+   * @throws Throwable on error reading a property file
+   */
+  public PropertyStore load(final List<String> paths,
+                            final String cachePath) throws Throwable {
+    final List<String> key = new ArrayList<>();
+    final List<Stamp> stamps = new ArrayList<>();
+
+    for (final String p: paths) {
+      final Path path = Path.of(p).toAbsolutePath();
+      final BasicFileAttributes attrs =
+              Files.readAttributes(path, BasicFileAttributes.class);
+
+      key.add(path.toString());
+      stamps.add(new Stamp(path.toString(),
+                           attrs.size(),
+                           attrs.lastModifiedTime().toMillis()));
+    }
+
+    final Loaded l = loaded.get(key);
+    if ((l != null) && l.stamps().equals(stamps)) {
+      utils.debug("Properties unchanged since last load");
+      changed = Set.of();
+      return l.store();
+    }
+
+    PropertyStore previous = (l == null) ? null : l.store();
+    PropertyStore store = null;
+
+    if (cachePath != null) {
+      final Snapshot snap = readSnapshot(Path.of(cachePath), stamps);
+
+      if (snap != null) {
+        if (snap.current()) {
+          store = snap.store();
+        }
+
+        if (previous == null) {
+          previous = snap.store();
+        }
+      }
+    }
+
+    if (store == null) {
+      final Properties merged = new Properties();
+
+      for (final Stamp s: stamps) {
+        try (final InputStream is =
+                     new BufferedInputStream(
+                             Files.newInputStream(Path.of(s.path())))) {
+          merged.load(is);
+        }
+      }
+
+      store = PropertyStore.of(merged);
+      utils.info(format("Loaded %d properties from %d files",
+                        store.names().size(), stamps.size()));
+
+      if (cachePath != null) {
+        writeSnapshot(Path.of(cachePath), stamps, store);
+      }
+    }
+
+    loaded.put(key, new Loaded(stamps, store));
+
+    if (previous == null) {
+      changed = null;
+    } else {
+      changed = changedNames(previous, store);
+      utils.info(format("%d properties changed since last load",
+                        changed.size()));
+    }
+
+    return store;
+  }
+
+  private static Set<String> changedNames(final PropertyStore from,
+                                          final PropertyStore to) {
+    final Set<String> res = new TreeSet<>();
+
+    for (final String name: from.names()) {
+      if (!from.get(name).equals(to.get(name))) {
+        res.add(name);
+      }
+    }
+
+    for (final String name: to.names()) {
+      if (from.get(name) == null) {
+        res.add(name);
+      }
+    }
+
+    return res;
+  }
+
+  /* Null if missing or unreadable */
+  private Snapshot readSnapshot(final Path cache,
+                                final List<Stamp> stamps) {
+    if (!Files.isRegularFile(cache)) {
+      return null;
+    }
+
+    try (final DataInputStream dis =
+                 new DataInputStream(new BufferedInputStream(
+                         Files.newInputStream(cache)))) {
+      if ((dis.readInt() != magic) || (dis.readInt() != version)) {
+        utils.warn("Ignoring property snapshot " + cache +
+                           ": not a snapshot or wrong version");
+        return null;
+      }
+
+      final int nfiles = dis.readInt();
+      boolean current = nfiles == stamps.size();
+
+      for (int i = 0; i < nfiles; i++) {
+        final Stamp cached = new Stamp(readString(dis),
+                                       dis.readLong(),
+                                       dis.readLong());
+        if (current && !cached.equals(stamps.get(i))) {
+          utils.debug("Property snapshot is stale: " + cached.path());
+          current = false;
+        }
+      }
+
+      final int n = dis.readInt();
+      final String[] names = new String[n];
+      final String[] values = new String[n];
+
+      for (int i = 0; i < n; i++) {
+        names[i] = readString(dis);
+        values[i] = readString(dis);
+
+        if ((i > 0) && (names[i - 1].compareTo(names[i]) >= 0)) {
+          utils.warn("Ignoring property snapshot " + cache +
+                             ": names out of order");
+          return null;
+        }
+      }
+
+      if (current) {
+        utils.info(format("Loaded %d properties from snapshot %s",
+                          n, cache));
+      }
+
+      return new Snapshot(current,
+                          PropertyStore.ofSorted(names, values));
+    } catch (final Throwable t) {
+      utils.warn("Unable to read property snapshot " + cache + ": " + t);
+      return null;
+    }
+  }
+
+  /* Written to a temp file then renamed so a reader never sees part
+     of one */
+  private void writeSnapshot(final Path cache,
+                             final List<Stamp> stamps,
+                             final PropertyStore store) {
+    final Path temp = cache.resolveSibling(cache.getFileName() + ".tmp");
+
+    try {
+      try (final DataOutputStream dos =
+                   new DataOutputStream(new BufferedOutputStream(
+                           Files.newOutputStream(temp)))) {
+        dos.writeInt(magic);
+        dos.writeInt(version);
+
+        dos.writeInt(stamps.size());
+        for (final Stamp s: stamps) {
+          writeString(dos, s.path());
+          dos.writeLong(s.size());
+          dos.writeLong(s.modified());
+        }
+
+        dos.writeInt(store.names().size());
+        for (final String name: store.names()) {
+          writeString(dos, name);
+          writeString(dos, store.get(name));
+        }
+      }
+
+      Files.move(temp, cache, ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (final Throwable t) {
+      utils.warn("Unable to write property snapshot " + cache + ": " + t);
+    }
+  }
+
+  /* writeUTF is limited to 64K - values may be longer */
+  private static void writeString(final DataOutputStream dos,
+                                  final String val) throws IOException {
+    final byte[] b = val.getBytes(StandardCharsets.UTF_8);
+    dos.writeInt(b.length);
+    dos.write(b);
+  }
+
+  private static String readString(final DataInputStream dis)
+          throws IOException {
+    final byte[] b = new byte[dis.readInt()];
+    dis.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
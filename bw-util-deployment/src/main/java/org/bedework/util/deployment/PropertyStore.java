@@ -0,0 +1,236 @@
+package org.bedework.util.deployment;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/** One level of a {@link PropertiesChain}.
+ *
+ * <p>A level built from a Properties object copies it once into an
+ * immutable map and a sorted array of the names, so all the names
+ * with a given prefix are a range of the array. Nothing is locked or
+ * changed afterwards - any number of threads can read a level without
+ * blocking, unlike Properties which is a synchronized Hashtable.
+ * Filtering a level, e.g. selecting "org.bedework.app.bwcal." and
+ * renaming it "app.", gives a view onto that subtree - nothing is
+ * copied and lookups go straight to the original. A filtered view of
+ * a view is just a narrower view of the original.</p>
+ *
+ * @author douglm
+ */
+public class PropertyStore {
+  /* Set for a level built from properties */
+  private final Map<String, String> values;
+  private final String[] sorted;
+
+  /* Set for a filtered view */
+  private final PropertyStore source;
+  private final String prefix;
+  private final String newPrefix;
+
+  private PropertyStore(final Map<String, String> values,
+                        final String[] sorted,
+                        final PropertyStore source,
+                        final String prefix,
+                        final String newPrefix) {
+    this.values = values;
+    this.sorted = sorted;
+    this.source = source;
+    this.prefix = prefix;
+    this.newPrefix = newPrefix;
+  }
+
+  /**
+   * @param props the properties - copied so later changes are not seen
+   * @return a level for them
+   */
+  public static PropertyStore of(final Properties props) {
+    final Set<String> names = props.stringPropertyNames();
+    final Map<String, String> values = new HashMap<>(names.size() * 2);
+
+    for (final String name: names) {
+      values.put(name, props.getProperty(name));
+    }
+
+    final String[] sorted = names.toArray(new String[0]);
+    Arrays.sort(sorted);
+
+    return new PropertyStore(Map.copyOf(values), sorted,
+                             null, null, null);
+  }
+
+  /** Build a level from names already in order, as written by
+   * {@link PropertyFiles}.
+   *
+   * @param sorted names in ascending order - not copied
+   * @param values matching the names
+   * @return a level for them
+   */
+  static PropertyStore ofSorted(final String[] sorted,
+                                final String[] values) {
+    final Map<String, String> m = new HashMap<>(sorted.length * 2);
+
+    for (int i = 0; i < sorted.length; i++) {
+      m.put(sorted[i], values[i]);
+    }
+
+    return new PropertyStore(Map.copyOf(m), sorted, null, null, null);
+  }
+
+  /** Select the properties whose names start with prefix and rename
+   * them to start with newPrefix instead.
+   *
+   * @param prefix to select
+   * @param newPrefix to replace it with
+   * @return a view of this level
+   */
+  public PropertyStore filter(final String prefix,
+                              final String newPrefix) {
+    if (source == null) {
+      return new PropertyStore(null, null, this, prefix, newPrefix);
+    }
+
+    // Names in this view are this.newPrefix + rest
+    if (prefix.startsWith(this.newPrefix)) {
+      return new PropertyStore(
+              null, null, source,
+              this.prefix + prefix.substring(this.newPrefix.length()),
+              newPrefix);
+    }
+
+    if (this.newPrefix.startsWith(prefix)) {
+      // Every name in this view is selected
+      return new PropertyStore(
+              null, null, source, this.prefix,
+              newPrefix + this.newPrefix.substring(prefix.length()));
+    }
+
+    // Nothing selected
+    return of(new Properties());
+  }
+
+  /**
+   * @param name of property
+   * @return value or null
+   */
+  public String get(final String name) {
+    if (source == null) {
+      return values.get(name);
+    }
+
+    if (!name.startsWith(newPrefix)) {
+      return null;
+    }
+
+    return source.get(prefix + name.substring(newPrefix.length()));
+  }
+
+  /**
+   * @param name of a property in this level, defined or not
+   * @return the name it has, or would have, in the properties it came
+   *         from - null if no such name can be in this level
+   */
+  public String definedName(final String name) {
+    if (source == null) {
+      return name;
+    }
+
+    if (!name.startsWith(newPrefix)) {
+      return null;
+    }
+
+    return prefix + name.substring(newPrefix.length());
+  }
+
+  /**
+   * @return names of all properties at this level, in order. A read
+   *         only view - nothing is copied.
+   */
+  public Set<String> names() {
+    final List<String> sourceNames;
+
+    if (source == null) {
+      sourceNames = Arrays.asList(sorted);
+    } else {
+      sourceNames = source.withPrefix(prefix);
+    }
+
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<String> iterator() {
+        final Iterator<String> it = sourceNames.iterator();
+
+        return new Iterator<>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          @Override
+          public String next() {
+            final String name = it.next();
+
+            if (source == null) {
+              return name;
+            }
+
+            return newPrefix + name.substring(prefix.length());
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return sourceNames.size();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return (o instanceof String) && (get((String)o) != null);
+      }
+    };
+  }
+
+  /* Names starting with prefix - a range of the sorted names
+   */
+  private List<String> withPrefix(final String prefix) {
+    final List<String> names = Arrays.asList(sorted);
+
+    if (prefix.isEmpty()) {
+      return names;
+    }
+
+    final int lo = insertionPoint(prefix);
+    final String limit = successor(prefix);
+    final int hi = (limit == null) ? sorted.length : insertionPoint(limit);
+
+    return names.subList(lo, hi);
+  }
+
+  /* Index of the first name not less than key */
+  private int insertionPoint(final String key) {
+    final int i = Arrays.binarySearch(sorted, key);
+
+    return (i >= 0) ? i : -(i + 1);
+  }
+
+  /* The least string greater than every string starting with prefix
+     or null if there is none.
+   */
+  private static String successor(final String prefix) {
+    for (int i = prefix.length() - 1; i >= 0; i--) {
+      final char c = prefix.charAt(i);
+
+      if (c != Character.MAX_VALUE) {
+        return prefix.substring(0, i) + (char)(c + 1);
+      }
+    }
+
+    return null;
+  }
+}
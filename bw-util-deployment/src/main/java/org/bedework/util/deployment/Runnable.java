@@ -30,14 +30,37 @@ public class Runnable {
         "    --in           Directory for ears\n" +
         "    --inurl        WebDAV location for ears\n" +
         "    --out          Directory for modified ears\n" +
+        "    --memStaging   Stage up to this many MB in memory (tmpfs)\n" +
+        "    --memStagingDir Memory backed directory - default /dev/shm\n" +
+        "    --timings      Also write phase timings as JSON to this file\n" +
+        "    --templateCache MB of compiled templates to keep - 0 for none\n" +
+        "    --tokenInclude Glob for files always token processed (repeatable)\n" +
+        "    --tokenExclude Glob for files never token processed (repeatable)\n" +
+        "    --tokenStats   Report used, unresolved and unused properties\n" +
         "    --deploy       Directory to deploy modified ears\n" +
         "    --resources    Base for resource references\n" +
         "    --noclean      Don't delete temp dirs - helps debugging\n" +
         "    --noversion    If specified suppress version check\n" +
         "    --checkonly    Display what would be deployed without this flag\n" +
         "    --delete       If specified delete target ear if it exists\n" +
-        "    --props        Path to property file defining configuration\n" +
+        "    --incremental  Only write files changed since the last deploy\n" +
+        "    --atomic       Stage the deployment then swap it in by renaming\n" +
+        "    --link         Hard link unmodified files instead of copying\n" +
+        "    --packed       Deploy each ear/war/sar as a single archive\n" +
+        "    --props        Path to property file defining configuration.\n" +
+        "                   May be repeated - later files override earlier\n" +
+        "    --propsCache   Binary snapshot of the parsed property files\n" +
+        "    --propsChanged Also process deployed artifacts which use\n" +
+        "                   properties changed since the last run\n" +
         "    --ear          If specified restrict processing to named ear\n" +
+        "    --war          If specified restrict processing to named war\n" +
+        "    --sar          If specified restrict processing to named sar\n" +
+        "    --artifact     Name of an ear, war or sar to process. May be\n" +
+        "                   repeated to process many in one run\n" +
+        "    --threads      Maximum number of artifacts processed at once\n" +
+        "    --unzipThreads Number of threads used to extract each archive\n" +
+        "    --copyThreads  Number of threads used to copy directory trees\n" +
+        "    --docsThreads  Number of threads used to copy docs with tokens\n" +
         "    --debug        Enable debugging messages\n" +
         "\n" +
         "Description:\n" +
@@ -127,6 +150,26 @@ public class Runnable {
         pe.setBaseDirPath(args.next());
       } else if (args.ifMatch("--out")) {
         pe.setOutDirPath(args.next());
+      } else if (args.ifMatch("--memStaging")) {
+        pe.setMemoryStagingMb(Integer.parseInt(args.next()));
+      } else if (args.ifMatch("--memStagingDir")) {
+        pe.setMemoryStagingPath(args.next());
+      } else if (args.ifMatch("--timings")) {
+        pe.setTimingsPath(args.next());
+      } else if (args.ifMatch("--templateCache")) {
+        pe.setTemplateCacheMb(Integer.parseInt(args.next()));
+      } else if (args.ifMatch("--tokenInclude")) {
+        pe.addTokenInclude(args.next());
+      } else if (args.ifMatch("--tokenExclude")) {
+        pe.addTokenExclude(args.next());
+      } else if (args.ifMatch("--tokenStats")) {
+        pe.setTokenStats(true);
+      } else if (args.ifMatch("--props")) {
+        pe.addPropsPath(args.next());
+      } else if (args.ifMatch("--propsCache")) {
+        pe.setPropsCachePath(args.next());
+      } else if (args.ifMatch("--propsChanged")) {
+        pe.setPropsChanged(true);
       } else if (args.ifMatch("--noclean")) {
         pe.setCleanup(false);
       } else if (args.ifMatch("--noversion")) {
@@ -135,10 +178,30 @@ public class Runnable {
         pe.setCheckonly(true);
       } else if (args.ifMatch("--delete")) {
         pe.setDelete(true);
+      } else if (args.ifMatch("--incremental")) {
+        pe.setIncremental(true);
+      } else if (args.ifMatch("--atomic")) {
+        pe.setAtomic(true);
+      } else if (args.ifMatch("--link")) {
+        pe.setLinkFiles(true);
+      } else if (args.ifMatch("--packed")) {
+        pe.setPacked(true);
       } else if (args.ifMatch("--ear")) {
         pe.setEarName(args.next());
       } else if (args.ifMatch("--war")) {
         pe.setWarName(args.next());
+      } else if (args.ifMatch("--sar")) {
+        pe.setSarName(args.next());
+      } else if (args.ifMatch("--artifact")) {
+        pe.addArtifactName(args.next());
+      } else if (args.ifMatch("--threads")) {
+        pe.setThreads(Integer.parseInt(args.next()));
+      } else if (args.ifMatch("--unzipThreads")) {
+        pe.setUnzipThreads(Integer.parseInt(args.next()));
+      } else if (args.ifMatch("--docsThreads")) {
+        pe.setDocsThreads(Integer.parseInt(args.next()));
+      } else if (args.ifMatch("--copyThreads")) {
+        pe.setCopyThreads(Integer.parseInt(args.next()));
       } else if (args.ifMatch("--noears")) {
         pe.setNoEars(true);
       } else if (args.ifMatch("--debug")) {
@@ -20,8 +20,8 @@ import org.apache.maven.artifact.versioning.ComparableVersion;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-import static org.bedework.util.deployment.Utils.compareStrings;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Result of splitting a name into its component parts, e.g.
  *
@@ -34,48 +34,106 @@ import static org.bedework.util.deployment.Utils.compareStrings;
  * <p>Note the artifactId must be longer than 3 characters - to avoid the
  * "bw-" part of the name</p>
  *
+ * <p>Only the name and the positions of the parts within it are kept.
+ * The parts are taken from the name when asked for and comparisons
+ * work on the name directly. Names split by testName are cached so a
+ * directory listed again, or the same artifact in many directories,
+ * is only split once.</p>
+ *
  */
 public class SplitName implements Comparable<SplitName> {
   private final String name;
 
-  private final String artifactId;
-  private String classifier;
-  private String version;
-  private String type;
+  /* The artifactId is name[0, artifactEnd) and is followed by "-" */
+  private final int artifactEnd;
+
+  /* Position of the "-" before the classifier or -1 for none */
+  private final int classifierDash;
+
+  /* Position of the "." before the type or -1 for none */
+  private final int typeDot;
+
+  /* Cached results of testName(name) */
+  private static final Map<String, SplitName> cache =
+          new ConcurrentHashMap<>();
+
+  private static final int maxCached = 50000;
+
+  /* Cached for names which cannot be split */
+  private static final SplitName unsplittable =
+          new SplitName("-", 0, -1, -1);
+
+  private SplitName(final String name,
+                    final int artifactEnd,
+                    final int classifierDash,
+                    final int typeDot) {
+    this.name = name;
+    this.artifactEnd = artifactEnd;
+    this.classifierDash = classifierDash;
+    this.typeDot = typeDot;
+  }
 
   SplitName(final String name,
             final String artifactId) {
+    this(name, artifactId.length());
+
+    if (!name.startsWith(artifactId)) {
+      throw new RuntimeException("Bad name/artifactId");
+    }
+  }
+
+  private SplitName(final String name,
+                    final int dashPos) {
     this.name = name;
-    this.artifactId = artifactId;
+    artifactEnd = dashPos;
 
-    final int dashPos = artifactId.length();
-    if (name.charAt(artifactId.length()) != '-') {
+    if (name.charAt(dashPos) != '-') {
       throw new RuntimeException("Bad name/artifactId");
     }
 
     final int dotPos = name.lastIndexOf(".");
+    final int vcEnd;
 
     if (dotPos > 0) {
-      final var vc = getVersionClassifier(name.substring(dashPos + 1, dotPos));
-      version = vc.version();
-      classifier = vc.classifier();
-      type = name.substring(dotPos + 1);
+      if (dotPos <= dashPos) {
+        throw new RuntimeException("Bad name/artifactId");
+      }
+
+      typeDot = dotPos;
+      vcEnd = dotPos;
     } else {
-      final var vc = getVersionClassifier(name.substring(dashPos + 1));
-      version = vc.version();
-      classifier = vc.classifier();
+      typeDot = -1;
+      vcEnd = name.length();
     }
+
+    // Classifier follows the last "-" of version-classifier
+    final int index = name.lastIndexOf('-', vcEnd - 1);
+    classifierDash = (index > dashPos) ? index : -1;
   }
 
+  /** The version and type must be those in the name.
+   *
+   * @param name the artifact name
+   * @param artifactId the artifactId part of the name
+   * @param version the version part - may include a classifier
+   * @param type the type part
+   */
   SplitName(final String name,
             final String artifactId,
             final String version,
             final String type) {
     this(name, artifactId);
-    final var vc = getVersionClassifier(version);
-    this.version = vc.version();
-    classifier = vc.classifier();
-    this.type = type;
+
+    final String vc;
+    if (classifierDash < 0) {
+      vc = getVersion();
+    } else {
+      vc = getVersion() + "-" + getClassifier();
+    }
+
+    if (!vc.equals(version) || !getType().equals(type)) {
+      throw new RuntimeException("Bad name/version/type");
+    }
   }
 
   public static List<String> classifiers =
@@ -94,6 +152,9 @@ public class SplitName implements Comparable<SplitName> {
   public static void addClassifier(final String val) {
     if (!classifiers.contains(val)) {
       classifiers.add(val);
+
+      // Names may split differently now
+      cache.clear();
     }
   }
 
@@ -104,6 +165,26 @@ public class SplitName implements Comparable<SplitName> {
    * @return split name or null if unable to split.
    */
   public static SplitName testName(final String name) {
+    SplitName sn = cache.get(name);
+
+    if (sn == null) {
+      sn = split(name);
+
+      if (cache.size() >= maxCached) {
+        cache.clear();
+      }
+
+      cache.put(name, (sn == null) ? unsplittable : sn);
+    }
+
+    if (sn == unsplittable) {
+      return null;
+    }
+
+    return sn;
+  }
+
+  private static SplitName split(final String name) {
     /* Try to figure out the artifactId */
 
     int testPos = -1;
@@ -131,7 +212,7 @@ public class SplitName implements Comparable<SplitName> {
     final int dotPos = name.lastIndexOf(".");
 
     if (dotPos > dashPos) {
-      return new SplitName(name, name.substring(0, dashPos));
+      return new SplitName(name, dashPos);
     }
 
     return null;
@@ -145,7 +226,14 @@ public class SplitName implements Comparable<SplitName> {
       final int dotPos = name.lastIndexOf(".");
 
       if (dotPos > specificName.length()) {
-        return new SplitName(name, specificName);
+        // Use the general split if it agrees
+        final SplitName sn = cache.get(name);
+        if ((sn != null) && (sn != unsplittable) &&
+                (sn.artifactEnd == specificName.length())) {
+          return sn;
+        }
+
+        return new SplitName(name, specificName.length());
       }
     }
 
@@ -158,8 +246,9 @@ public class SplitName implements Comparable<SplitName> {
    * @return true if artifactId and type match.
    */
   public boolean sameAs(final SplitName that) {
-    return artifactId.equals(that.artifactId) &&
-            getType().equals(that.getType());
+    return (artifactEnd == that.artifactEnd) &&
+            name.regionMatches(0, that.name, 0, artifactEnd) &&
+            (compareType(that) == 0);
   }
 
   /** artifactId and type must match.
@@ -204,14 +293,14 @@ public class SplitName implements Comparable<SplitName> {
   }
 
   public String getArtifactId() {
-    return artifactId;
+    return name.substring(0, artifactEnd);
   }
 
   public String getType() {
-    if (type == null) {
+    if (typeDot < 0) {
       return "jar";
     }
-    return type;
+    return name.substring(typeDot + 1);
   }
 
   public String getName() {
@@ -219,11 +308,28 @@ public class SplitName implements Comparable<SplitName> {
   }
 
   public String getClassifier() {
-    return classifier;
+    if (classifierDash < 0) {
+      return null;
+    }
+    return name.substring(classifierDash + 1, versionClassifierEnd());
   }
 
   public String getVersion() {
-    return version;
+    return name.substring(artifactEnd + 1, versionEnd());
+  }
+
+  private int versionClassifierEnd() {
+    if (typeDot < 0) {
+      return name.length();
+    }
+    return typeDot;
+  }
+
+  private int versionEnd() {
+    if (classifierDash < 0) {
+      return versionClassifierEnd();
+    }
+    return classifierDash;
   }
 
   private record VersionClassifier(String version,
@@ -246,26 +352,70 @@ public class SplitName implements Comparable<SplitName> {
 
   @Override
   public int compareTo(final SplitName that) {
-    int res = compareStrings(getArtifactId(),
-                             that.getArtifactId());
+    int res = compareRegions(name, 0, artifactEnd,
+                             that.name, 0, that.artifactEnd);
     if (res != 0) {
       return res;
     }
 
-    res = compareStrings(getType(),
-                         that.getType());
+    res = compareType(that);
     if (res != 0) {
       return res;
     }
 
-    res = compareStrings(getVersion(),
-                         that.getVersion());
+    res = compareRegions(name, artifactEnd + 1, versionEnd(),
+                         that.name, that.artifactEnd + 1,
+                         that.versionEnd());
     if (res != 0) {
       return res;
     }
 
-    return compareStrings(getClassifier(),
-                          that.getClassifier());
+    // No classifier sorts first
+    if (classifierDash < 0) {
+      return (that.classifierDash < 0) ? 0 : -1;
+    }
+
+    if (that.classifierDash < 0) {
+      return 1;
+    }
+
+    return compareRegions(name, classifierDash + 1,
+                          versionClassifierEnd(),
+                          that.name, that.classifierDash + 1,
+                          that.versionClassifierEnd());
+  }
+
+  /* No type is "jar" */
+  private int compareType(final SplitName that) {
+    final String t1 = (typeDot < 0) ? "jar" : name;
+    final int s1 = (typeDot < 0) ? 0 : typeDot + 1;
+    final String t2 = (that.typeDot < 0) ? "jar" : that.name;
+    final int s2 = (that.typeDot < 0) ? 0 : that.typeDot + 1;
+
+    return compareRegions(t1, s1, t1.length(), t2, s2, t2.length());
+  }
+
+  /* As String.compareTo on s1[from1, to1) and s2[from2, to2) */
+  private static int compareRegions(final String s1,
+                                    final int from1,
+                                    final int to1,
+                                    final String s2,
+                                    final int from2,
+                                    final int to2) {
+    final int len1 = to1 - from1;
+    final int len2 = to2 - from2;
+    final int len = Math.min(len1, len2);
+
+    for (int i = 0; i < len; i++) {
+      final char c1 = s1.charAt(from1 + i);
+      final char c2 = s2.charAt(from2 + i);
+
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+
+    return len1 - len2;
   }
 
   @Override
@@ -277,7 +427,7 @@ public class SplitName implements Comparable<SplitName> {
     return new StringBuilder(getClass().getSimpleName())
             .append("{")
             .append("name=").append(getName())
-            .append(", artifactId=").append(artifactId)
+            .append(", artifactId=").append(getArtifactId())
             .append(", classifier=").append(getClassifier())
             .append(", version=").append(getVersion())
             .append(", type=").append(getType())
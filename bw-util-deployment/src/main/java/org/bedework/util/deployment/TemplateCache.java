@@ -0,0 +1,172 @@
+package org.bedework.util.deployment;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Compiled templates for files copied with token replacement, kept
+ * for the run. The same docs tree copied into many wars is read and
+ * scanned once.
+ *
+ * <p>An entry is keyed by the file's path, size and modification time
+ * so a file changed during the run is compiled again. Files larger
+ * than the per file limit are not cached and neither is anything once
+ * the total would exceed the cache limit - the caller streams those
+ * instead.</p>
+ *
+ * @author douglm
+ */
+public class TemplateCache extends BaseClass {
+  private record Key(Path path,
+                     long size,
+                     long modified) {}
+
+  private final Map<Key, TokenTemplate> templates =
+          new ConcurrentHashMap<>();
+
+  /* Files known to have no tokens - only the key is kept */
+  private final Set<Key> tokenFree = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong tokenFreeFiles = new AtomicLong();
+
+  private long maxFileBytes = 1024 * 1024;
+
+  private long maxBytes = 64 * 1024 * 1024;
+
+  private final AtomicLong cachedBytes = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  public TemplateCache(final Utils utils) {
+    super(utils);
+  }
+
+  /**
+   * @param val largest file, in bytes, to cache. 0 disables the cache.
+   */
+  public void setMaxFileBytes(final long val) {
+    maxFileBytes = val;
+  }
+
+  /**
+   * @param val total bytes of content to cache
+   */
+  public void setMaxBytes(final long val) {
+    maxBytes = val;
+  }
+
+  /** Files without tokens can be copied (or linked) as they are.
+   * The answer is remembered for the run.
+   *
+   * @param path of file
+   * @return true if the file contains no tokens
+   * @throws Throwable on error
+   */
+  public boolean isTokenFree(final Path path) throws Throwable {
+    final Key key = key(path);
+
+    if (tokenFree.contains(key)) {
+      tokenFreeFiles.incrementAndGet();
+      return true;
+    }
+
+    final TokenTemplate cached = templates.get(key);
+    if (cached != null) {
+      return false;
+    }
+
+    if (TokenTemplate.containsTokens(path)) {
+      return false;
+    }
+
+    tokenFree.add(key);
+    tokenFreeFiles.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @param path of file
+   * @return template for the file or null if it should be streamed
+   * @throws Throwable on error
+   */
+  public TokenTemplate get(final Path path) throws Throwable {
+    final Key key = key(path);
+
+    if (key.size() > maxFileBytes) {
+      return null;
+    }
+
+    final TokenTemplate cached = templates.get(key);
+    if (cached != null) {
+      hits.incrementAndGet();
+      return cached;
+    }
+
+    misses.incrementAndGet();
+
+    final TokenTemplate tt =
+            TokenTemplate.compile(Files.readAllBytes(path));
+
+    // Another thread may have compiled it meanwhile - use theirs
+    final TokenTemplate other = templates.putIfAbsent(key, tt);
+    if (other != null) {
+      return other;
+    }
+
+    if (cachedBytes.addAndGet(tt.length()) > maxBytes) {
+      templates.remove(key, tt);
+      cachedBytes.addAndGet(-tt.length());
+    }
+
+    return tt;
+  }
+
+  /**
+   * @return number of files found to need no replacement
+   */
+  public long getTokenFreeFiles() {
+    return tokenFreeFiles.get();
+  }
+
+  /**
+   * @return bytes of content held in the cache
+   */
+  public long getCachedBytes() {
+    return cachedBytes.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static Key key(final Path path) throws Throwable {
+    final BasicFileAttributes attrs =
+            Files.readAttributes(path, BasicFileAttributes.class);
+
+    return new Key(path.toAbsolutePath(),
+                   attrs.size(),
+                   attrs.lastModifiedTime().toMillis());
+  }
+
+  public String toString() {
+    return new StringBuilder(getClass().getSimpleName())
+            .append("{")
+            .append("templates=").append(templates.size())
+            .append(", bytes=").append(cachedBytes.get())
+            .append(", hits=").append(hits.get())
+            .append(", misses=").append(misses.get())
+            .append(", tokenFree=").append(tokenFreeFiles.get())
+            .append("}")
+            .toString();
+  }
+}
@@ -0,0 +1,307 @@
+package org.bedework.util.deployment;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/** Wall time, bytes and file counts for each phase of a run, per
+ * artifact.
+ *
+ * <p>A phase is started on the thread doing the work and becomes the
+ * current scope for that thread until closed. Copies made while it is
+ * open are counted against it - the copier picks up the scope of the
+ * thread which called it so work done on other threads is still
+ * attributed correctly.</p>
+ *
+ * <p>Token copy time is the sum over all files and is part of the
+ * update time.</p>
+ *
+ * @author douglm
+ */
+public class Timings {
+  /** Name used for work not belonging to any one artifact */
+  public static final String runName = "(run)";
+
+  public enum Phase {
+    SCAN("scan"),
+    FETCH("fetch"),
+    UNZIP("unzip"),
+    CONSTRUCT("construct"),
+    UPDATE("update"),
+    TOKEN_COPY("token copy"),
+    DELETE("delete"),
+    MANIFEST("manifest"),
+    DEPLOY("deploy");
+
+    private final String label;
+
+    Phase(final String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /** The artifact and phase work is being done for. */
+  public record Scope(String artifact,
+                      Phase phase) {}
+
+  private static class Counter {
+    final LongAdder nanos = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder files = new LongAdder();
+  }
+
+  /** Closing records the elapsed time and restores the previous
+   * scope.
+   */
+  public class Timer implements AutoCloseable {
+    private final Scope scope;
+    private final Scope previous;
+    private final long start = System.nanoTime();
+
+    Timer(final Scope scope,
+          final Scope previous) {
+      this.scope = scope;
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      add(scope, System.nanoTime() - start, 0, 0);
+      current.set(previous);
+    }
+  }
+
+  /** Work timed by {@link #time(String, Phase, Work)}. */
+  @FunctionalInterface
+  public interface Work<T> {
+    T run() throws Throwable;
+  }
+
+  /** Work with no result timed by {@link #time(String, Phase, Task)}. */
+  @FunctionalInterface
+  public interface Task {
+    void run() throws Throwable;
+  }
+
+  private final Map<String, Map<Phase, Counter>> artifacts =
+          new ConcurrentSkipListMap<>();
+
+  private final ThreadLocal<Scope> current = new ThreadLocal<>();
+
+  /** Start timing a phase on this thread.
+   *
+   * @param artifact name or null for the run as a whole
+   * @param phase being started
+   * @return timer to close at the end of the phase
+   */
+  public Timer start(final String artifact,
+                     final Phase phase) {
+    final Scope scope = new Scope(artifact == null ? runName : artifact,
+                                  phase);
+    final Scope previous = current.get();
+    current.set(scope);
+
+    return new Timer(scope, previous);
+  }
+
+  /** Do some work on this thread as a phase.
+   *
+   * @param artifact name or null for the run as a whole
+   * @param phase the work belongs to
+   * @param work to do
+   * @return result of the work
+   * @throws Throwable from the work
+   */
+  public <T> T time(final String artifact,
+                    final Phase phase,
+                    final Work<T> work) throws Throwable {
+    final Timer timer = start(artifact, phase);
+    try {
+      return work.run();
+    } finally {
+      timer.close();
+    }
+  }
+
+  /** Do some work on this thread as a phase.
+   *
+   * @param artifact name or null for the run as a whole
+   * @param phase the work belongs to
+   * @param task to do
+   * @throws Throwable from the task
+   */
+  public void time(final String artifact,
+                   final Phase phase,
+                   final Task task) throws Throwable {
+    final Timer timer = start(artifact, phase);
+    try {
+      task.run();
+    } finally {
+      timer.close();
+    }
+  }
+
+  /**
+   * @return scope of the current thread - never null
+   */
+  public Scope current() {
+    final Scope scope = current.get();
+
+    if (scope == null) {
+      return new Scope(runName, Phase.UPDATE);
+    }
+
+    return scope;
+  }
+
+  /** Add bytes and files to a scope.
+   *
+   * @param scope to count against
+   * @param bytes processed
+   * @param files processed
+   */
+  public void count(final Scope scope,
+                    final long bytes,
+                    final long files) {
+    add(scope, 0, bytes, files);
+  }
+
+  /** Add time, bytes and files to a scope.
+   *
+   * @param scope to count against
+   * @param nanos elapsed
+   * @param bytes processed
+   * @param files processed
+   */
+  public void add(final Scope scope,
+                  final long nanos,
+                  final long bytes,
+                  final long files) {
+    final Map<Phase, Counter> phases =
+            artifacts.computeIfAbsent(scope.artifact(),
+                                      k -> new EnumMap<>(Phase.class));
+    final Counter c;
+
+    synchronized (phases) {
+      c = phases.computeIfAbsent(scope.phase(), k -> new Counter());
+    }
+
+    c.nanos.add(nanos);
+    c.bytes.add(bytes);
+    c.files.add(files);
+  }
+
+  /** Log a table of phases for each artifact and the totals.
+   *
+   * @param utils for logging
+   */
+  public void report(final Utils utils) {
+    final Map<Phase, Counter> totals = new EnumMap<>(Phase.class);
+
+    utils.info("--------------------------------------------------");
+    utils.info(format("%-30s %-10s %10s %8s %12s %8s",
+                      "artifact", "phase", "ms", "files",
+                      "bytes", "MB/s"));
+
+    for (final String name: artifacts.keySet()) {
+      for (final Map.Entry<Phase, Counter> me:
+              phases(name).entrySet()) {
+        final Counter c = me.getValue();
+        utils.info(line(name, me.getKey(), c));
+
+        final Counter t = totals.computeIfAbsent(me.getKey(),
+                                                 k -> new Counter());
+        t.nanos.add(c.nanos.sum());
+        t.bytes.add(c.bytes.sum());
+        t.files.add(c.files.sum());
+      }
+    }
+
+    utils.info("--------------------------------------------------");
+    for (final Map.Entry<Phase, Counter> me: totals.entrySet()) {
+      utils.info(line("total", me.getKey(), me.getValue()));
+    }
+    utils.info("--------------------------------------------------");
+  }
+
+  /** Write the timings as JSON.
+   *
+   * @param path of file to write
+   * @throws Throwable on error
+   */
+  public void writeJson(final Path path) throws Throwable {
+    try (final Writer wtr = Files.newBufferedWriter(
+            path, StandardCharsets.UTF_8)) {
+      wtr.write("{\"artifacts\": [");
+
+      String artDelim = "\n";
+      for (final String name: artifacts.keySet()) {
+        wtr.write(artDelim);
+        artDelim = ",\n";
+
+        wtr.write("  {\"name\": \"" + jsonEscape(name) +
+                          "\", \"phases\": {");
+
+        String phaseDelim = "\n";
+        for (final Map.Entry<Phase, Counter> me:
+                phases(name).entrySet()) {
+          final Counter c = me.getValue();
+          wtr.write(phaseDelim);
+          phaseDelim = ",\n";
+
+          wtr.write(format("    \"%s\": {\"ms\": %d, \"files\": %d, " +
+                                   "\"bytes\": %d}",
+                           me.getKey().getLabel(),
+                           c.nanos.sum() / 1000000,
+                           c.files.sum(),
+                           c.bytes.sum()));
+        }
+
+        wtr.write("}}");
+      }
+
+      wtr.write("\n]}\n");
+    }
+  }
+
+  private Map<Phase, Counter> phases(final String name) {
+    final Map<Phase, Counter> phases = artifacts.get(name);
+
+    synchronized (phases) {
+      return new EnumMap<>(phases);
+    }
+  }
+
+  private static String line(final String name,
+                             final Phase phase,
+                             final Counter c) {
+    final long ms = c.nanos.sum() / 1000000;
+    final long bytes = c.bytes.sum();
+    final String rate;
+
+    if ((ms == 0) || (bytes == 0)) {
+      rate = "";
+    } else {
+      rate = format("%.1f", (bytes / 1048576.0) / (ms / 1000.0));
+    }
+
+    return format("%-30s %-10s %10d %8d %12d %8s",
+                  name, phase.getLabel(), ms,
+                  c.files.sum(), bytes, rate);
+  }
+
+  private static String jsonEscape(final String val) {
+    return val.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
@@ -4,71 +4,74 @@
 package org.bedework.util.deployment;
 
 import java.io.IOException;
-import java.io.PushbackReader;
 import java.nio.CharBuffer;
 import java.io.Reader;
+import java.util.Arrays;
 
 /**
  * Token replacement code based on http://tutorials.jenkov.com/java-howto/replace-strings-in-streams-arrays-files.html
  * User: mike Date: 6/19/18 Time: 23:00
+ *
+ * <p>The source is read a block at a time. Each block is searched for
+ * "${" and the text between tokens is delivered as whole segments.
+ * A token which is not resolved is delivered unchanged, as is a "${"
+ * with no closing "}".</p>
  */
 public class TokenReplacingReader extends Reader {
-  private PushbackReader pushbackReader = null;
-  private ITokenResolver tokenResolver = null;
-  private final StringBuilder tokenNameBuffer = new StringBuilder();
-  private String tokenValue = null;
-  private int tokenValueIndex = 0;
+  private static final int bufferSize = 8192;
+
+  private final Reader source;
+  private final ITokenResolver tokenResolver;
+
+  /* Source chars in buf[pos] to buf[limit - 1] are still to be
+     scanned */
+  private char[] buf = new char[bufferSize];
+  private int pos;
+  private int limit;
+  private boolean eof;
+
+  /* Replacement value still to be delivered */
+  private String tokenValue;
+  private int tokenValueIndex;
 
   public TokenReplacingReader(final Reader source,
                               final ITokenResolver resolver) {
-    this.pushbackReader = new PushbackReader(source, 2);
+    this.source = source;
     this.tokenResolver = resolver;
   }
 
   public int read(final CharBuffer target) throws IOException {
-    throw new RuntimeException("Operation Not Supported");
-  }
-
-  public int read() throws IOException {
-    if (this.tokenValue != null) {
-      if (this.tokenValueIndex < this.tokenValue.length()) {
-        return this.tokenValue.charAt(this.tokenValueIndex++);
-      }
-      if (this.tokenValueIndex == this.tokenValue.length()) {
-        this.tokenValue = null;
-        this.tokenValueIndex = 0;
-      }
-    }
-
-    int data = this.pushbackReader.read();
-    if (data != '$') {
-      return data;
+    final int len = target.remaining();
+    if (len == 0) {
+      return 0;
     }
 
-    data = this.pushbackReader.read();
-    if (data != '{') {
-      this.pushbackReader.unread(data);
-      return '$';
+    if (target.hasArray()) {
+      final int n = read(target.array(),
+                         target.arrayOffset() + target.position(),
+                         len);
+      if (n > 0) {
+        target.position(target.position() + n);
+      }
+      return n;
     }
-    this.tokenNameBuffer.delete(0, this.tokenNameBuffer.length());
 
-    data = this.pushbackReader.read();
-    while (data != '}') {
-      this.tokenNameBuffer.append((char)data);
-      data = this.pushbackReader.read();
+    final char[] cbuf = new char[Math.min(len, bufferSize)];
+    final int n = read(cbuf, 0, cbuf.length);
+    if (n > 0) {
+      target.put(cbuf, 0, n);
     }
+    return n;
+  }
 
-    this.tokenValue = this.tokenResolver
-            .resolveToken(this.tokenNameBuffer.toString());
+  public int read() throws IOException {
+    final char[] cbuf = new char[1];
 
-    if (this.tokenValue == null) {
-      this.tokenValue = "${" + this.tokenNameBuffer.toString() + "}";
+    if (read(cbuf, 0, 1) < 0) {
+      return -1;
     }
-    if (this.tokenValue.length() == 0) {
-      return read();
-    }
-    return this.tokenValue.charAt(this.tokenValueIndex++);
 
+    return cbuf[0];
   }
 
   public int read(final char cbuf[]) throws IOException {
@@ -78,23 +81,63 @@ public class TokenReplacingReader extends Reader {
   public int read(final char cbuf[],
                   final int off,
                   final int len) throws IOException {
-    int charsRead = 0;
-    for (int i = 0; i < len; i++) {
-      final int nextChar = read();
-      if (nextChar == -1) {
-        if (charsRead == 0) {
-          charsRead = -1;
+    if (len == 0) {
+      return 0;
+    }
+
+    int n = 0;
+
+    while (n < len) {
+      if (tokenValue != null) {
+        final int ct = Math.min(len - n,
+                                tokenValue.length() - tokenValueIndex);
+        tokenValue.getChars(tokenValueIndex, tokenValueIndex + ct,
+                            cbuf, off + n);
+        tokenValueIndex += ct;
+        n += ct;
+
+        if (tokenValueIndex == tokenValue.length()) {
+          tokenValue = null;
+          tokenValueIndex = 0;
         }
+        continue;
+      }
+
+      if ((pos == limit) && !fill()) {
         break;
       }
-      charsRead = i + 1;
-      cbuf[off + i] = (char)nextChar;
+
+      // Deliver everything up to the next '$'
+      int end = pos;
+      final int max = Math.min(limit, pos + len - n);
+      while ((end < max) && (buf[end] != '$')) {
+        end++;
+      }
+
+      if (end > pos) {
+        System.arraycopy(buf, pos, cbuf, off + n, end - pos);
+        n += end - pos;
+        pos = end;
+        continue;
+      }
+
+      if (end == max) {
+        continue;
+      }
+
+      // At a '$'
+      token();
     }
-    return charsRead;
+
+    if ((n == 0) && eof && (tokenValue == null)) {
+      return -1;
+    }
+
+    return n;
   }
 
   public void close() throws IOException {
-    this.pushbackReader.close();
+    source.close();
   }
 
   public long skip(final long n) throws IOException {
@@ -102,7 +145,7 @@ public class TokenReplacingReader extends Reader {
   }
 
   public boolean ready() throws IOException {
-    return this.pushbackReader.ready();
+    return (tokenValue != null) || (pos < limit) || source.ready();
   }
 
   public boolean markSupported() {
@@ -116,4 +159,100 @@ public class TokenReplacingReader extends Reader {
   public void reset() throws IOException {
     throw new RuntimeException("Operation Not Supported");
   }
+
+  /* buf[pos] is a '$'. Set tokenValue to what it is replaced by and
+     step over what was consumed.
+   */
+  private void token() throws IOException {
+    if (!ensure(2) || (buf[pos + 1] != '{')) {
+      // A lone '$' - the following char is scanned as usual
+      pos++;
+      tokenValue = "$";
+      return;
+    }
+
+    // Look for the closing brace, reading more if needed
+    int scanned = pos + 2;
+    int close;
+
+    for (;;) {
+      close = indexOf('}', scanned, limit);
+      if (close >= 0) {
+        break;
+      }
+
+      scanned = limit - pos;
+      if (!ensure(scanned + 1)) {
+        // Unterminated - deliver as is
+        tokenValue = new String(buf, pos, limit - pos);
+        pos = limit;
+        return;
+      }
+      scanned += pos;
+    }
+
+    final String name = new String(buf, pos + 2, close - pos - 2);
+    pos = close + 1;
+
+    tokenValue = tokenResolver.resolveToken(name);
+
+    if (tokenValue == null) {
+      tokenValue = "${" + name + "}";
+    } else if (tokenValue.isEmpty()) {
+      tokenValue = null;
+    }
+  }
+
+  private int indexOf(final char ch,
+                      final int from,
+                      final int to) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == ch) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /* Refill an empty buffer.
+   */
+  private boolean fill() throws IOException {
+    pos = 0;
+    limit = 0;
+
+    return ensure(1);
+  }
+
+  /* Make at least count chars available from pos, moving what's left to
+     the start of the buffer and growing it if needed.
+   */
+  private boolean ensure(final int count) throws IOException {
+    if (limit - pos >= count) {
+      return true;
+    }
+
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+    }
+
+    if (count > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(count, buf.length * 2));
+    } else if (limit == buf.length) {
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    }
+
+    while ((limit < count) && !eof) {
+      final int n = source.read(buf, limit, buf.length - limit);
+      if (n < 0) {
+        eof = true;
+      } else {
+        limit += n;
+      }
+    }
+
+    return limit >= count;
+  }
 }
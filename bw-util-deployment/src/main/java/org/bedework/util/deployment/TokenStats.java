@@ -0,0 +1,233 @@
+package org.bedework.util.deployment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/** Counts property lookups made while resolving tokens so we can see
+ * which properties are used, where in the chain they were found, which
+ * are never found and which are defined but never used.
+ *
+ * <p>Levels are numbered as in {@link PropertiesChain}: 1 is the bottom
+ * of the chain, higher numbers are more specific. Level 0 means the
+ * value came from a system property.</p>
+ *
+ * <p>A property pushed by filtering the level below is traced back to
+ * the name it was filtered from, so that using "app.x" in a war counts
+ * as a use of "org.bedework.app.ear.war.x". Filtered levels are
+ * described in {@link PropertyStore}.</p>
+ *
+ * @author douglm
+ */
+public class TokenStats extends BaseClass {
+  private static final int maxLevel = 8;
+
+  private static final int maxFilesListed = 5;
+
+  private static final int hottestListed = 20;
+
+  private static class Counter {
+    final LongAdder lookups = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder[] levels = new LongAdder[maxLevel + 1];
+    final Set<String> files = ConcurrentHashMap.newKeySet();
+    final LongAdder fileMisses = new LongAdder();
+
+    Counter() {
+      for (int i = 0; i < levels.length; i++) {
+        levels[i] = new LongAdder();
+      }
+    }
+  }
+
+  private final Map<String, Counter> counters =
+          new ConcurrentSkipListMap<>();
+
+  /* Names, as defined, of properties used */
+  private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder nanos = new LongAdder();
+
+  private final ThreadLocal<int[]> depth =
+          ThreadLocal.withInitial(() -> new int[1]);
+
+  public TokenStats(final Utils utils) {
+    super(utils);
+  }
+
+  /** Start timing a lookup. Nested lookups, made while expanding a
+   * value, are part of the outer one.
+   *
+   * @return start time or 0 if nested
+   */
+  public long start() {
+    if (depth.get()[0]++ > 0) {
+      return 0;
+    }
+
+    return System.nanoTime();
+  }
+
+  /**
+   * @param start value returned by start
+   */
+  public void end(final long start) {
+    depth.get()[0]--;
+
+    if (start != 0) {
+      nanos.add(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @param name looked up
+   * @param level where found - 0 for a system property
+   * @param definedName the name it was defined with
+   */
+  public void hit(final String name,
+                  final int level,
+                  final String definedName) {
+    final Counter c = counter(name);
+    c.lookups.increment();
+    c.levels[Math.min(level, maxLevel)].increment();
+
+    used.add(definedName);
+  }
+
+  /**
+   * @param name looked up and not found
+   */
+  public void miss(final String name) {
+    final Counter c = counter(name);
+    c.lookups.increment();
+    c.misses.increment();
+  }
+
+  /**
+   * @param name of token left unreplaced in a file
+   * @param file containing it
+   */
+  public void missInFile(final String name,
+                         final String file) {
+    final Counter c = counter(name);
+    c.fileMisses.increment();
+
+    if (c.files.size() < maxFilesListed) {
+      c.files.add(file);
+    }
+  }
+
+  /**
+   * @param name of token removed from a property value as it has no
+   *             value
+   */
+  public void dropped(final String name) {
+    counter(name).dropped.increment();
+  }
+
+  /** Log the totals, the most used properties, those not found and
+   * those defined but never used.
+   *
+   * @param defined the properties which were available
+   */
+  public void report(final Set<String> defined) {
+    long lookups = 0;
+    long misses = 0;
+    final long[] levels = new long[maxLevel + 1];
+
+    for (final Counter c: counters.values()) {
+      lookups += c.lookups.sum();
+      misses += c.misses.sum();
+      for (int i = 0; i <= maxLevel; i++) {
+        levels[i] += c.levels[i].sum();
+      }
+    }
+
+    utils.info("--------------------------------------------------");
+    utils.info(format("Token resolution: %d names, %d lookups, " +
+                              "%d misses, %d ms",
+                      counters.size(), lookups, misses,
+                      nanos.sum() / 1000000));
+
+    final StringBuilder sb = new StringBuilder("Hits by level:");
+    for (int i = 0; i <= maxLevel; i++) {
+      if (levels[i] == 0) {
+        continue;
+      }
+
+      sb.append(' ');
+      if (i == 0) {
+        sb.append("system");
+      } else {
+        sb.append(i);
+      }
+      sb.append('=').append(levels[i]);
+    }
+    utils.info(sb.toString());
+
+    final List<Map.Entry<String, Counter>> hottest =
+            new ArrayList<>(counters.entrySet());
+    hottest.sort((a, b) -> Long.compare(b.getValue().lookups.sum(),
+                                        a.getValue().lookups.sum()));
+
+    utils.info("Most used:");
+    for (final Map.Entry<String, Counter> me:
+            hottest.subList(0, Math.min(hottestListed,
+                                        hottest.size()))) {
+      utils.info(format("  %8d %s",
+                        me.getValue().lookups.sum(), me.getKey()));
+    }
+
+    for (final Map.Entry<String, Counter> me: counters.entrySet()) {
+      final Counter c = me.getValue();
+
+      if ((c.misses.sum() == 0) && (c.dropped.sum() == 0) &&
+              (c.fileMisses.sum() == 0)) {
+        continue;
+      }
+
+      final String msg =
+              format("Unresolved %s: %d lookups missed, " +
+                             "%d dropped from values, %d left in files %s",
+                     me.getKey(),
+                     c.misses.sum(),
+                     c.dropped.sum(),
+                     c.fileMisses.sum(),
+                     c.files.isEmpty() ? "" : c.files);
+
+      // Many lookups are for optional properties - only warn if
+      // output was affected
+      if ((c.dropped.sum() == 0) && (c.fileMisses.sum() == 0)) {
+        utils.info(msg);
+      } else {
+        utils.warn(msg);
+      }
+    }
+
+    if (defined == null) {
+      return;
+    }
+
+    final Set<String> unused = new TreeSet<>(defined);
+    unused.removeAll(used);
+
+    utils.info(format("%d of %d defined properties not used",
+                      unused.size(), defined.size()));
+    for (final String name: unused) {
+      utils.info("  unused: " + name);
+    }
+    utils.info("--------------------------------------------------");
+  }
+
+  private Counter counter(final String name) {
+    return counters.computeIfAbsent(name, k -> new Counter());
+  }
+}
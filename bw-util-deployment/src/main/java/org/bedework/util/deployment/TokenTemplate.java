@@ -0,0 +1,320 @@
+package org.bedework.util.deployment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/** The content of a file split once into literal bytes and "${name}"
+ * tokens. Writing it out for a target only has to resolve the tokens
+ * against that target's properties - the content is not scanned again.
+ *
+ * <p>Work is done on the raw bytes. "$", "{" and "}" are ASCII so are
+ * found correctly in UTF-8 or any other ASCII compatible encoding and
+ * everything other than a replaced token is written back byte for
+ * byte. Only the replacement values are encoded, as UTF-8.</p>
+ *
+ * <p>Tokens are found exactly as {@link TokenReplacingReader} finds
+ * them: the name is everything up to the first "}", an unresolved
+ * token is written unchanged and a "${" with no closing "}" is
+ * literal text.</p>
+ *
+ * @author douglm
+ */
+public class TokenTemplate {
+  private static final int bufferSize = 64 * 1024;
+
+  /* Files larger than this are mapped rather than read for a scan */
+  private static final long mapThreshold = 256 * 1024;
+
+  /* Size of each mapped region when scanning */
+  private static final long mapRegionSize = 256 * 1024 * 1024;
+
+  private final byte[] data;
+
+  /* For token i the "$" is at data[starts[i]], the "}" at
+     data[ends[i]] and the name is names[i] */
+  private final int[] starts;
+  private final int[] ends;
+  private final String[] names;
+
+  private TokenTemplate(final byte[] data,
+                        final int[] starts,
+                        final int[] ends,
+                        final String[] names) {
+    this.data = data;
+    this.starts = starts;
+    this.ends = ends;
+    this.names = names;
+  }
+
+  /**
+   * @param data to split - not copied
+   * @return compiled template
+   */
+  public static TokenTemplate compile(final byte[] data) {
+    int[] starts = new int[8];
+    int[] ends = new int[8];
+    int ct = 0;
+
+    int from = 0;
+    for (;;) {
+      final int start = tokenStart(data, from, data.length);
+      if (start < 0) {
+        break;
+      }
+
+      final int end = indexOf(data, '}', start + 2, data.length);
+      if (end < 0) {
+        // Unterminated - the rest is literal
+        break;
+      }
+
+      if (ct == starts.length) {
+        starts = Arrays.copyOf(starts, ct * 2);
+        ends = Arrays.copyOf(ends, ct * 2);
+      }
+
+      starts[ct] = start;
+      ends[ct] = end;
+      ct++;
+      from = end + 1;
+    }
+
+    final String[] names = new String[ct];
+    for (int i = 0; i < ct; i++) {
+      names[i] = name(data, starts[i], ends[i]);
+    }
+
+    return new TokenTemplate(data,
+                             Arrays.copyOf(starts, ct),
+                             Arrays.copyOf(ends, ct),
+                             names);
+  }
+
+  /** Check for a "${" without compiling or copying anything. Large
+   * files are scanned through a mapped view.
+   *
+   * @param path of file
+   * @return true if the file has at least one token start
+   * @throws IOException on error
+   */
+  public static boolean containsTokens(final Path path) throws IOException {
+    try (final FileChannel fc = FileChannel.open(path, READ)) {
+      final long size = fc.size();
+
+      if (size < 2) {
+        return false;
+      }
+
+      if (size <= mapThreshold) {
+        final ByteBuffer bb = ByteBuffer.allocate((int)size);
+        while (bb.hasRemaining() && (fc.read(bb) >= 0)) {
+        }
+        bb.flip();
+        return containsTokens(bb);
+      }
+
+      /* Regions overlap by a byte so a "${" across a boundary is
+         still seen */
+      for (long pos = 0; pos < size - 1; pos += mapRegionSize - 1) {
+        final long len = Math.min(mapRegionSize, size - pos);
+        if (containsTokens(fc.map(FileChannel.MapMode.READ_ONLY,
+                                  pos, len))) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  private static boolean containsTokens(final ByteBuffer bb) {
+    final int last = bb.limit() - 1;
+
+    for (int i = bb.position(); i < last; i++) {
+      if ((bb.get(i) == '$') && (bb.get(i + 1) == '{')) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @return number of bytes of content
+   */
+  public int length() {
+    return data.length;
+  }
+
+  /**
+   * @return number of tokens in the content
+   */
+  public int getTokenCount() {
+    return names.length;
+  }
+
+  /** Write the content with each token replaced by its value.
+   *
+   * @param os to write to
+   * @param resolver for token values
+   * @throws IOException on error
+   */
+  public void write(final OutputStream os,
+                    final ITokenResolver resolver) throws IOException {
+    int from = 0;
+
+    for (int i = 0; i < names.length; i++) {
+      os.write(data, from, starts[i] - from);
+      writeToken(os, resolver, names[i], data, starts[i], ends[i]);
+      from = ends[i] + 1;
+    }
+
+    os.write(data, from, data.length - from);
+  }
+
+  /** Copy a stream replacing tokens without holding all of it in
+   * memory. Only the text of a token is ever held back while looking
+   * for its end.
+   *
+   * @param is to read from
+   * @param os to write to
+   * @param resolver for token values
+   * @throws IOException on error
+   */
+  public static void copy(final InputStream is,
+                          final OutputStream os,
+                          final ITokenResolver resolver) throws IOException {
+    byte[] buf = new byte[bufferSize];
+    int limit = 0;
+    boolean eof = false;
+
+    while (!eof) {
+      final int n = is.read(buf, limit, buf.length - limit);
+      if (n < 0) {
+        eof = true;
+      } else {
+        limit += n;
+      }
+
+      final int done = write(buf, limit, eof, os, resolver);
+
+      // Keep any partial token for the next block
+      System.arraycopy(buf, done, buf, 0, limit - done);
+      limit -= done;
+
+      if (limit == buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      }
+    }
+  }
+
+  /* Write buf[0] to buf[limit - 1] replacing tokens. Unless at the end
+     of the input, stop at a token which may not be complete.
+
+     Returns the number of bytes dealt with.
+   */
+  private static int write(final byte[] buf,
+                           final int limit,
+                           final boolean eof,
+                           final OutputStream os,
+                           final ITokenResolver resolver) throws IOException {
+    int from = 0;
+
+    for (;;) {
+      final int dollar = indexOf(buf, '$', from, limit);
+      if (dollar < 0) {
+        os.write(buf, from, limit - from);
+        return limit;
+      }
+
+      if (dollar + 1 == limit) {
+        if (eof) {
+          os.write(buf, from, limit - from);
+          return limit;
+        }
+
+        os.write(buf, from, dollar - from);
+        return dollar;
+      }
+
+      if (buf[dollar + 1] != '{') {
+        os.write(buf, from, dollar + 1 - from);
+        from = dollar + 1;
+        continue;
+      }
+
+      final int end = indexOf(buf, '}', dollar + 2, limit);
+      if (end < 0) {
+        if (eof) {
+          // Unterminated - the rest is literal
+          os.write(buf, from, limit - from);
+          return limit;
+        }
+
+        os.write(buf, from, dollar - from);
+        return dollar;
+      }
+
+      os.write(buf, from, dollar - from);
+      writeToken(os, resolver, name(buf, dollar, end), buf, dollar, end);
+      from = end + 1;
+    }
+  }
+
+  private static void writeToken(final OutputStream os,
+                                 final ITokenResolver resolver,
+                                 final String name,
+                                 final byte[] buf,
+                                 final int start,
+                                 final int end) throws IOException {
+    final String val = resolver.resolveToken(name);
+
+    if (val == null) {
+      os.write(buf, start, end + 1 - start);
+    } else if (!val.isEmpty()) {
+      os.write(val.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static String name(final byte[] buf,
+                             final int start,
+                             final int end) {
+    return new String(buf, start + 2, end - start - 2,
+                      StandardCharsets.UTF_8);
+  }
+
+  /* Index of the next "${" */
+  private static int tokenStart(final byte[] buf,
+                                final int from,
+                                final int to) {
+    int i = from;
+    for (;;) {
+      i = indexOf(buf, '$', i, to - 1);
+      if ((i < 0) || (buf[i + 1] == '{')) {
+        return i;
+      }
+      i++;
+    }
+  }
+
+  private static int indexOf(final byte[] buf,
+                             final char ch,
+                             final int from,
+                             final int to) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == ch) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+}
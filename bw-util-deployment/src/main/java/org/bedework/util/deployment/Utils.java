@@ -21,13 +21,15 @@ import org.apache.maven.plugin.logging.Log;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.Writer;
 import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemLoopException;
 import java.nio.file.FileVisitOption;
@@ -45,6 +47,9 @@ import java.util.EnumSet;
 import java.util.Formatter;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -60,6 +65,13 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 public class Utils {
   private boolean debug;
   private final Log logger;
+  private CopyStrategy copyStrategy = CopyStrategy.COPY;
+  private volatile ForkJoinPool copyPool;
+  private volatile ForkJoinPool tokenCopyPool;
+  private Timings timings = new Timings();
+  private final TemplateCache templates = new TemplateCache(this);
+  private final FileClassifier classifier = new FileClassifier(this);
+  private final HeldDescriptors heldDescriptors = new HeldDescriptors();
   private final Properties versions = new Properties();
 
   public Utils(final Log logger) {
@@ -67,6 +79,58 @@ public class Utils {
     debug = logger.isDebugEnabled();
   }
 
+  /** How files which need no token replacement are copied.
+   */
+  public enum CopyStrategy {
+    /** Always copy the content */
+    COPY,
+
+    /** Hard link to the source - falls back to a copy where that
+     * isn't possible, e.g. across filesystems.
+     */
+    LINK
+  }
+
+  public void setCopyStrategy(final CopyStrategy val) {
+    copyStrategy = val;
+  }
+
+  public CopyStrategy getCopyStrategy() {
+    return copyStrategy;
+  }
+
+  public void setTimings(final Timings val) {
+    timings = val;
+  }
+
+  /**
+   * @return timings for copies - never null
+   */
+  public Timings getTimings() {
+    return timings;
+  }
+
+  /**
+   * @return cache of compiled templates for token replacement
+   */
+  public TemplateCache getTemplates() {
+    return templates;
+  }
+
+  /**
+   * @return decides which files are token processed
+   */
+  public FileClassifier getClassifier() {
+    return classifier;
+  }
+
+  /**
+   * @return descriptors extracted but not yet written
+   */
+  public HeldDescriptors getHeldDescriptors() {
+    return heldDescriptors;
+  }
+
   public void setVersionsProp(final String name,
                               final String val) {
     versions.setProperty(name, val);
@@ -76,6 +140,43 @@ public class Utils {
     return versions.getProperty(name);
   }
 
+  /** Open a file for writing. Any existing file is removed first
+   * rather than overwritten so that it is never written through a
+   * hard link created by {@link CopyStrategy#LINK}.
+   *
+   * @param f the file
+   * @return stream for writing
+   * @throws IOException on error
+   */
+  public static FileOutputStream newOutputStream(final File f)
+          throws IOException {
+    Files.deleteIfExists(f.toPath());
+    return new FileOutputStream(f);
+  }
+
+  /** Copy a file which needs no token replacement according to the
+   * current strategy.
+   *
+   * @param in source
+   * @param out destination - replaced if it exists
+   * @throws IOException on error
+   */
+  public void copyPlain(final Path in,
+                        final Path out) throws IOException {
+    if (copyStrategy == CopyStrategy.LINK) {
+      try {
+        Files.deleteIfExists(out);
+        Files.createLink(out, in);
+        return;
+      } catch (final UnsupportedOperationException |
+                     IOException e) {
+        debug("Unable to link " + out + " - copying: " + e);
+      }
+    }
+
+    Files.copy(in, out, copyOptionAttributes);
+  }
+
   public Path createFile(final String path) throws Throwable {
     final Path pathToFile = Paths.get(path);
     Files.createDirectories(pathToFile.getParent());
@@ -157,7 +258,8 @@ public class Utils {
                                   " must be a file");
     }
 
-    if (!f.exists() && mustExist) {
+    if (!f.exists() && mustExist &&
+            !heldDescriptors.isHeld(f.toPath())) {
       throw new Exception(name + " in " +
                                   f.getAbsolutePath() +
                                   " must exist and be a file");
@@ -309,46 +411,25 @@ public class Utils {
     private final Path out;
     private final boolean outExists;
     private final PropertiesChain props;
+    private final Timings.Scope scope;
 
     DirCopier(final Path in,
               final Path out,
               final boolean outExists,
-              final PropertiesChain props) {
+              final PropertiesChain props,
+              final Timings.Scope scope) {
       this.in = in;
       this.out = out;
       this.outExists = outExists;
       this.props = props;
+      this.scope = scope;
     }
 
     @Override
     public FileVisitResult preVisitDirectory(final Path dir,
                                              final BasicFileAttributes attrs) {
       // before visiting entries in a directory we copy the directory
-      final Path newdir = out.resolve(in.relativize(dir));
-
-      try {
-//        if ((newdir.compareTo(out) == 0) && outExists) {
-  //        return CONTINUE;
-    //    }
-
-        //Utils.debug("**** Visit dir " + dir);
-        final File nd = newdir.toFile();
-        if (nd.exists()) {
-          if (nd.isDirectory()) {
-            return CONTINUE;
-          }
-
-          throw new RuntimeException(
-                  dir.toString() +
-                          " already exists and is not a directory");
-        }
-        //Utils.debug("**** Copy dir " + dir);
-        Files.copy(dir, newdir, copyOptionAttributes);
-      } catch (final FileAlreadyExistsException faee) {
-        warn("File already exists" + faee.getFile());
-      } catch (final Throwable t) {
-        throw new RuntimeException("Unable to create: " + newdir + ": " + t);
-      }
+      copyDir(dir, out.resolve(in.relativize(dir)));
       return CONTINUE;
     }
 
@@ -356,7 +437,7 @@ public class Utils {
     public FileVisitResult visitFile(final Path file,
                                      final BasicFileAttributes attrs) {
       //Utils.debug("**** Copy file " + file);
-      copyFile(file, out.resolve(in.relativize(file)), props);
+      copyFile(file, out.resolve(in.relativize(file)), props, scope);
       return CONTINUE;
     }
 
@@ -365,15 +446,7 @@ public class Utils {
                                               final IOException exc) {
       // fix up modification time of directory when done
       if (exc == null) {
-        final Path newdir = out.resolve(in.relativize(dir));
-        try {
-          final FileTime time = Files.getLastModifiedTime(dir);
-          Files.setLastModifiedTime(newdir, time);
-        } catch (final Throwable t) {
-          error("Unable to copy all attributes to: " + newdir +
-                        ": " + t);
-          throw new RuntimeException(t);
-        }
+        copyDirTime(dir, out.resolve(in.relativize(dir)));
       }
       return CONTINUE;
     }
@@ -390,26 +463,300 @@ public class Utils {
     }
   }
 
+  private void copyDir(final Path dir,
+                       final Path newdir) {
+    try {
+      //Utils.debug("**** Visit dir " + dir);
+      final File nd = newdir.toFile();
+      if (nd.exists()) {
+        if (nd.isDirectory()) {
+          return;
+        }
+
+        throw new RuntimeException(
+                dir.toString() +
+                        " already exists and is not a directory");
+      }
+      //Utils.debug("**** Copy dir " + dir);
+      Files.copy(dir, newdir, copyOptionAttributes);
+    } catch (final FileAlreadyExistsException faee) {
+      warn("File already exists" + faee.getFile());
+    } catch (final Throwable t) {
+      throw new RuntimeException("Unable to create: " + newdir + ": " + t);
+    }
+  }
+
+  private void copyDirTime(final Path dir,
+                           final Path newdir) {
+    try {
+      final FileTime time = Files.getLastModifiedTime(dir);
+      Files.setLastModifiedTime(newdir, time);
+    } catch (final Throwable t) {
+      error("Unable to copy all attributes to: " + newdir +
+                    ": " + t);
+      throw new RuntimeException(t);
+    }
+  }
+
+  private static final int copyBatchSize = 32;
+
+  /**
+   * @param props for token replacement - null for none
+   * @return number of files copied by each task. Replacement is CPU
+   *         bound so each file is a task.
+   */
+  static int batchSize(final PropertiesChain props) {
+    if (props == null) {
+      return copyBatchSize;
+    }
+
+    return 1;
+  }
+
+  /**
+   * Copies a directory: its files in batches and each subdirectory as
+   * a separate task. Like the walker with FOLLOW_LINKS, a directory
+   * which is also one of its own ancestors stops the copy.
+   * Tasks are never serialized.
+   */
+  @SuppressWarnings("serial")
+  private class ParallelDirCopier extends RecursiveAction {
+    private final Path in;
+    private final Path out;
+    private final Path dir;
+    private final List<Object> ancestors;
+    private final PropertiesChain props;
+    private final Timings.Scope scope;
+    private final int batchSize;
+    private final AtomicBoolean terminated;
+
+    ParallelDirCopier(final Path in,
+                      final Path out,
+                      final Path dir,
+                      final List<Object> ancestors,
+                      final PropertiesChain props,
+                      final Timings.Scope scope,
+                      final int batchSize,
+                      final AtomicBoolean terminated) {
+      this.in = in;
+      this.out = out;
+      this.dir = dir;
+      this.ancestors = ancestors;
+      this.props = props;
+      this.scope = scope;
+      this.batchSize = batchSize;
+      this.terminated = terminated;
+    }
+
+    @Override
+    protected void compute() {
+      if (terminated.get()) {
+        return;
+      }
+
+      final Path newdir = out.resolve(in.relativize(dir));
+      copyDir(dir, newdir);
+
+      final List<RecursiveAction> tasks = new ArrayList<>();
+      List<Path> files = new ArrayList<>();
+
+      try (final DirectoryStream<Path> ds =
+                   Files.newDirectoryStream(dir)) {
+        for (final Path p: ds) {
+          // Follows links
+          final BasicFileAttributes attrs =
+                  Files.readAttributes(p, BasicFileAttributes.class);
+
+          if (!attrs.isDirectory()) {
+            files.add(p);
+            if (files.size() == batchSize) {
+              tasks.add(new FileBatch(files));
+              files = new ArrayList<>();
+            }
+            continue;
+          }
+
+          final Object key = attrs.fileKey();
+          if ((key != null) && ancestors.contains(key)) {
+            error("cycle detected: " + p);
+            terminated.set(true);
+            return;
+          }
+
+          final List<Object> subAncestors = new ArrayList<>(ancestors);
+          subAncestors.add(key);
+          tasks.add(new ParallelDirCopier(in, out, p, subAncestors,
+                                          props, scope, batchSize,
+                                          terminated));
+        }
+      } catch (final IOException ioe) {
+        error("Unable to copy: " + dir + "; " + ioe);
+        terminated.set(true);
+        return;
+      }
+
+      if (!files.isEmpty()) {
+        tasks.add(new FileBatch(files));
+      }
+
+      invokeAll(tasks);
+
+      if (!terminated.get()) {
+        // fix up modification time of directory when done
+        copyDirTime(dir, newdir);
+      }
+    }
+
+    private class FileBatch extends RecursiveAction {
+      private final List<Path> files;
+
+      FileBatch(final List<Path> files) {
+        this.files = files;
+      }
+
+      @Override
+      protected void compute() {
+        for (final Path file: files) {
+          if (terminated.get()) {
+            return;
+          }
+          copyFile(file, out.resolve(in.relativize(file)), props,
+                   scope);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param val number of threads used to copy a tree. Less than 2
+   *            means copy on the calling thread.
+   */
+  public synchronized void setCopyThreads(final int val) {
+    if (copyPool != null) {
+      copyPool.shutdown();
+    }
+
+    if (val > 1) {
+      copyPool = new ForkJoinPool(val);
+    } else {
+      copyPool = null;
+    }
+  }
+
+  /**
+   * @param val number of threads used to copy a tree with token
+   *            replacement, e.g. the docs copied into a war. Less than 2
+   *            means use the pool for plain copies, if any.
+   */
+  public synchronized void setTokenCopyThreads(final int val) {
+    if (tokenCopyPool != null) {
+      tokenCopyPool.shutdown();
+    }
+
+    if (val > 1) {
+      tokenCopyPool = new ForkJoinPool(val);
+    } else {
+      tokenCopyPool = null;
+    }
+  }
+
+  /** Shut down the copy pools. Copies after this are made on the
+   * calling thread unless new pools are set.
+   */
+  public synchronized void shutdown() {
+    if (copyPool != null) {
+      copyPool.shutdown();
+      copyPool = null;
+    }
+
+    if (tokenCopyPool != null) {
+      tokenCopyPool.shutdown();
+      tokenCopyPool = null;
+    }
+  }
+
+  /** Copy a file or tree, replacing tokens if props is non-null.
+   * Files and bytes copied are counted against the timing scope of
+   * the calling thread.
+   *
+   * @param inPath file or tree to copy
+   * @param outPath destination
+   * @param outExists true if the destination already exists
+   * @param props for token replacement - null for none
+   * @throws Throwable on error
+   */
   public void copy(final Path inPath,
                    final Path outPath,
                    final boolean outExists,
                    final PropertiesChain props) throws Throwable {
+    final ForkJoinPool tokenPool = tokenCopyPool;
+    final ForkJoinPool pool;
+
+    if ((props != null) && (tokenPool != null)) {
+      pool = tokenPool;
+    } else {
+      pool = copyPool;
+    }
+    final Timings.Scope scope = timings.current();
+
+    if ((pool != null) && Files.isDirectory(inPath)) {
+      final BasicFileAttributes attrs =
+              Files.readAttributes(inPath, BasicFileAttributes.class);
+      final List<Object> ancestors = new ArrayList<>();
+      ancestors.add(attrs.fileKey());
+
+      /* Workers all resolve against a snapshot of the chain so
+         nothing pushed or popped by the caller can be seen part way
+         through.
+       */
+      final PropertiesChain snapshot;
+      if (props == null) {
+        snapshot = null;
+      } else {
+        snapshot = props.copy();
+      }
+
+      pool.invoke(new ParallelDirCopier(inPath, outPath, inPath,
+                                        ancestors, snapshot, scope,
+                                        batchSize(props),
+                                        new AtomicBoolean()));
+      return;
+    }
+
     final EnumSet<FileVisitOption> opts = EnumSet.of(
             FileVisitOption.FOLLOW_LINKS);
     final DirCopier tc = new DirCopier(inPath, outPath,
-                                       outExists, props);
+                                       outExists, props, scope);
     Files.walkFileTree(inPath, opts, Integer.MAX_VALUE, tc);
   }
 
   static class TokenResolver implements ITokenResolver {
     protected final PropertiesChain props;
 
+    protected final Path file;
+
     public TokenResolver(final PropertiesChain props) {
+      this(props, null);
+    }
+
+    /**
+     * @param props to resolve against
+     * @param file being copied - for reporting unresolved tokens
+     */
+    public TokenResolver(final PropertiesChain props,
+                         final Path file) {
       this.props = props;
+      this.file = file;
     }
 
     public String resolveToken(final String tokenName) {
-      return props.get(tokenName);
+      final String val = props.get(tokenName);
+
+      if ((val == null) && (props.getStats() != null)) {
+        props.getStats().missInFile(tokenName, String.valueOf(file));
+      }
+
+      return val;
     }
 
   }
@@ -487,27 +834,54 @@ public class Utils {
     return files;
   }
 
+  private static final int tokenCopyBufferSize = 64 * 1024;
+
+  /* Only text files with tokens need the cost of replacement - any
+     others take the plain copy (or link) path.
+   */
+  private FileClassifier.Kind classify(final Path in) {
+    try {
+      final FileClassifier.Kind kind = classifier.classify(in);
+
+      if (kind != FileClassifier.Kind.TOKENS) {
+        if (debug()) {
+          debug("Copy as is (" + kind.getLabel() + "): " + in);
+        }
+        return kind;
+      }
+
+      if (templates.isTokenFree(in)) {
+        return FileClassifier.Kind.TOKEN_FREE;
+      }
+
+      return FileClassifier.Kind.TOKENS;
+    } catch (final Throwable t) {
+      // Let the token copy report it
+      return FileClassifier.Kind.TOKENS;
+    }
+  }
+
   private void copyFile(final Path in,
                         final Path out,
-                        final PropertiesChain props) {
-    final boolean noReplacement;
+                        final PropertiesChain props,
+                        final Timings.Scope scope) {
+    final FileClassifier.Kind kind;
 
     if (props == null) {
-      noReplacement = true;
+      kind = null;
     } else {
-      final String name = in.getFileName().toString();
-
-      if (name.endsWith(".jar") || name.endsWith(".zip")) {
-        warn("Can't process this " + in);
-        noReplacement = true;
-      } else {
-        noReplacement = false;
-      }
+      kind = classify(in);
     }
 
-    if (noReplacement) {
+    if (kind != FileClassifier.Kind.TOKENS) {
       try {
-        Files.copy(in, out, copyOptionAttributes);
+        copyPlain(in, out);
+
+        final long size = Files.size(in);
+        timings.count(scope, size, 1);
+        if (kind != null) {
+          classifier.count(kind, size);
+        }
       } catch (final Throwable t) {
         error("Unable to copy: " + in + " to " + out +
                       ": " + t);
@@ -516,38 +890,47 @@ public class Utils {
       return;
     }
 //    if (Files.notExists(out)) {
-    Reader rdr = null;
-    Writer wtr = null;
+    final long start = System.nanoTime();
     try {
-      rdr = new TokenReplacingReader(new FileReader(in.toFile()),
-                                    new TokenResolver(props));
-      wtr = new FileWriter(out.toFile());
-
-      int data = rdr.read();
-      while(data != -1){
-        wtr.write(data);
-        data = rdr.read();
+      final TokenTemplate tt = templates.get(in);
+      final ITokenResolver resolver = new TokenResolver(props, in);
+      final PropertyDependencies deps = props.getDependencies();
+
+      Files.deleteIfExists(out);
+
+      final PropertyDependencies.Location loc =
+              (deps == null) ? null : deps.at(out, null);
+      try (final OutputStream os = new BufferedOutputStream(
+              Files.newOutputStream(out), tokenCopyBufferSize)) {
+        if (tt != null) {
+          tt.write(os, resolver);
+        } else {
+          // Too large to cache - stream it
+          try (final InputStream is = Files.newInputStream(in)) {
+            TokenTemplate.copy(is, os, resolver);
+          }
+        }
+      } finally {
+        if (loc != null) {
+          loc.close();
+        }
       }
     } catch (final Throwable t) {
       error(t);
       error("Unable to copy: " + in + " to " + out +
                     ": " + t);
-    } finally {
-      try {
-        if (rdr != null) {
-          rdr.close();
-        }
-      } catch (final Throwable t) {
-        error("Exception closing " + in + " " + t.getMessage());
-      }
-      try {
-        if (wtr != null) {
-          wtr.close();
-        }
-      } catch (final Throwable t) {
-        error("Exception closing " + out + " " + t.getMessage());
-      }
     }
+
+    long size = 0;
+    try {
+      size = Files.size(in);
+    } catch (final Throwable ignored) {
+    }
+
+    timings.add(new Timings.Scope(scope.artifact(),
+                                  Timings.Phase.TOKEN_COPY),
+                System.nanoTime() - start, size, 1);
+    classifier.count(FileClassifier.Kind.TOKENS, size);
     //  }
   }
 
@@ -630,6 +1013,20 @@ public class Utils {
    */
   void deleteMatching(final String dirPath,
                              final SplitName sn) throws Throwable {
+    deleteMatching(dirPath, sn, null);
+  }
+
+  /** Delete any files on the given path that have a name part that
+   * matches the split name except the one named.
+   *
+   * @param dirPath the directory
+   * @param sn the split name
+   * @param keep name of file to leave alone - may be null
+   * @throws Throwable on any error
+   */
+  void deleteMatching(final String dirPath,
+                      final SplitName sn,
+                      final String keep) throws Throwable {
     if ((sn.getArtifactId().length() < 3) || (sn.getType().length() < 3)) {
       throw new Exception("Suspect name " + sn);
     }
@@ -643,9 +1040,22 @@ public class Utils {
     }
 
     for (final String nm: names) {
-      if (nm.startsWith(sn.getArtifactId()) && nm.endsWith(sn.getType())) {
+      if (!nm.startsWith(sn.getArtifactId()) || !nm.endsWith(sn.getType())) {
+        continue;
+      }
+
+      /* Don't touch artifacts whose name merely starts with ours -
+         they may be being deployed concurrently.
+       */
+      if (nm.equals(keep)) {
+        continue;
+      }
+
+      final SplitName nmSn = SplitName.testName(nm);
+      if ((nmSn != null) && nmSn.sameAs(sn)) {
         final Path p = Paths.get(dirPath, nm);
         deleteAll(p);
+        DeploymentManifest.delete(dir.toPath(), nm);
       }
     }
   }
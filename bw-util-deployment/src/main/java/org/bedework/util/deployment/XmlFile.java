@@ -4,10 +4,13 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -53,7 +56,17 @@ public class XmlFile extends BaseClass {
   }
 
   private void init(final boolean nameSpaced) throws Throwable {
-    doc = utils.parseXml(new FileReader(theXml),
+    final byte[] held = utils.getHeldDescriptors().get(theXml.toPath());
+    final Reader rdr;
+
+    if (held != null) {
+      rdr = new InputStreamReader(new ByteArrayInputStream(held),
+                                  Charset.defaultCharset());
+    } else {
+      rdr = new FileReader(theXml);
+    }
+
+    doc = utils.parseXml(rdr,
                          nameSpaced,
                          true);  // pretend offline
 
@@ -65,9 +78,10 @@ public class XmlFile extends BaseClass {
   }
 
   public void output() throws Throwable {
-    final OutputStream out = new FileOutputStream(theXml, false);
+    final OutputStream out = Utils.newOutputStream(theXml);
 
     NetUtil.printDocument(doc, out);
+    utils.getHeldDescriptors().release(theXml.toPath());
   }
 
   protected Element findElement(final Element root,
@@ -126,7 +140,9 @@ public class XmlFile extends BaseClass {
 
     final String s = NetUtil.getElementContent(el);
 
-    final String newS = props.replace(s);
+    final String newS = replace(props, s,
+                                (tagnames == null) ? null :
+                                        String.join("/", tagnames));
 
     if (s.equals(newS)) {
       return;
@@ -155,7 +171,7 @@ public class XmlFile extends BaseClass {
 
     final String s = NetUtil.getElementContent((Element)n);
 
-    final String newS = props.replace(s);
+    final String newS = replace(props, s, tagname);
 
     if (s.equals(newS)) {
       return;
@@ -177,7 +193,8 @@ public class XmlFile extends BaseClass {
                                   final PropertiesChain props) {
     final String s = NetUtil.getAttrVal(el, attrname);
 
-    final String newS = props.replace(s);
+    final String newS = replace(props, s,
+                                el.getTagName() + "@" + attrname);
 
     if ((s != null) && s.equals(newS)) {
       return;
@@ -186,4 +203,25 @@ public class XmlFile extends BaseClass {
     el.setAttribute(attrname, newS);
     updated = true;
   }
+
+  /* Replace tokens recording any properties used against this file
+   * and the named element.
+   */
+  private String replace(final PropertiesChain props,
+                         final String val,
+                         final String element) {
+    final PropertyDependencies deps = props.getDependencies();
+
+    if (deps == null) {
+      return props.replace(val);
+    }
+
+    final PropertyDependencies.Location loc =
+            deps.at(theXml.toPath(), element);
+    try {
+      return props.replace(val);
+    } finally {
+      loc.close();
+    }
+  }
 }
@@ -0,0 +1,255 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Sequential and parallel extraction give the same tree.
+ *
+ * @author douglm
+ */
+public class ArchiveExtractorTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  private static final Set<String> skip =
+          Set.of("META-INF/jboss-service.xml");
+
+  @Test
+  public void sameTree() throws Throwable {
+    final Path zip = archive();
+
+    final Map<String, byte[]> seq = extract(zip, "seq", 1, skip);
+    final Map<String, byte[]> par = extract(zip, "par", 4, skip);
+
+    assertEquals(seq.keySet(), par.keySet());
+    for (final String name: seq.keySet()) {
+      assertArrayEquals(seq.get(name), par.get(name), name);
+    }
+
+    assertEquals(Set.of("index.html",
+                        "empty.txt",
+                        "big.bin",
+                        "WEB-INF/web.xml",
+                        "WEB-INF/classes/org/x/A.class",
+                        "META-INF/MANIFEST.MF"),
+                 seq.keySet());
+    assertEquals(0, seq.get("empty.txt").length);
+    assertArrayEquals(big(), seq.get("big.bin"));
+  }
+
+  @Test
+  public void directories() throws Throwable {
+    final Path zip = archive();
+
+    for (final int threads: new int[]{1, 4}) {
+      final Path dest = dir.resolve("d" + threads);
+      final ArchiveExtractor ae = new ArchiveExtractor(utils);
+
+      ae.setThreads(threads);
+      ae.setSkip(skip);
+      ae.extract(zip, dest);
+
+      // Directories are only created to hold files
+      assertTrue(Files.isDirectory(
+              dest.resolve("WEB-INF/classes/org/x")));
+      assertFalse(Files.exists(dest.resolve("WEB-INF/lib")),
+                  "empty directory entry created");
+      assertFalse(Files.exists(dest.resolve("META-INF/jboss-service.xml")),
+                  "skipped entry extracted");
+
+      assertEquals(6, ae.getFiles());
+      assertEquals(size(dest), ae.getBytes());
+    }
+  }
+
+  @Test
+  public void nothingSkipped() throws Throwable {
+    final Path zip = archive();
+
+    final Map<String, byte[]> seq = extract(zip, "seq", 1, null);
+    final Map<String, byte[]> par = extract(zip, "par", 3, null);
+
+    assertTrue(seq.containsKey("META-INF/jboss-service.xml"));
+    assertEquals(seq.keySet(), par.keySet());
+  }
+
+  @Test
+  public void heldDescriptors() throws Throwable {
+    final Path zip = archive();
+    final Map<String, byte[]> plain = extract(zip, "plain", 1, skip);
+    final HeldDescriptors held = utils.getHeldDescriptors();
+
+    for (final int threads: new int[]{1, 4}) {
+      final Path dest = dir.resolve("h" + threads);
+      final ArchiveExtractor ae = new ArchiveExtractor(utils);
+
+      ae.setThreads(threads);
+      ae.setSkip(skip);
+      ae.setHoldDescriptors(true);
+      ae.extract(zip, dest);
+
+      final Path webXml = dest.resolve("WEB-INF/web.xml");
+      assertFalse(Files.exists(webXml));
+      assertTrue(held.isHeld(webXml));
+      assertTrue(held.isHeld(dest.resolve("META-INF/MANIFEST.MF")));
+      assertFalse(held.isHeld(dest.resolve("index.html")));
+      assertEquals(2, held.size());
+      assertEquals(size(dest) + 10 + 22, ae.getBytes());
+
+      // Found although not written
+      assertEquals(webXml.toFile(),
+                   utils.file(dest.resolve("WEB-INF").toFile(),
+                              "web.xml", true));
+
+      assertEquals(2, held.flush(dest));
+      assertEquals(0, held.size());
+
+      final Map<String, byte[]> tree = extract(dest);
+      assertEquals(plain.keySet(), tree.keySet());
+      for (final String name: plain.keySet()) {
+        assertArrayEquals(plain.get(name), tree.get(name), name);
+      }
+    }
+
+    final Path dest = dir.resolve("dropped");
+    final ArchiveExtractor ae = new ArchiveExtractor(utils);
+    ae.setHoldDescriptors(true);
+    ae.extract(zip, dest);
+    held.drop(dest);
+    assertEquals(0, held.size());
+    assertFalse(Files.exists(dest.resolve("WEB-INF/web.xml")));
+  }
+
+  @Test
+  public void descriptorNames() {
+    assertTrue(HeldDescriptors.isDescriptor("WEB-INF/web.xml"));
+    assertTrue(HeldDescriptors.isDescriptor(
+            "bw-foo-1.0.war/WEB-INF/jboss-web.xml"));
+    assertTrue(HeldDescriptors.isDescriptor("META-INF/application.xml"));
+    assertTrue(HeldDescriptors.isDescriptor("META-INF/MANIFEST.MF"));
+    assertTrue(HeldDescriptors.isDescriptor("WEB-INF/wsdl/a.wsdl"));
+    assertFalse(HeldDescriptors.isDescriptor("WEB-INF/myweb.xml"));
+    assertFalse(HeldDescriptors.isDescriptor("META-INF/jboss-all.xml"));
+  }
+
+  private Map<String, byte[]> extract(final Path zip,
+                                      final String name,
+                                      final int threads,
+                                      final Set<String> skipped)
+          throws Throwable {
+    final Path dest = dir.resolve(name);
+    final ArchiveExtractor ae = new ArchiveExtractor(utils);
+
+    ae.setThreads(threads);
+    ae.setSkip(skipped);
+    ae.extract(zip, dest);
+
+    return extract(dest);
+  }
+
+  private static Map<String, byte[]> extract(final Path dest)
+          throws Throwable {
+    final Map<String, byte[]> res = new TreeMap<>();
+
+    try (final Stream<Path> s = Files.walk(dest)) {
+      for (final Path p: (Iterable<Path>)s::iterator) {
+        if (Files.isRegularFile(p)) {
+          res.put(dest.relativize(p).toString().replace('\\', '/'),
+                  Files.readAllBytes(p));
+        }
+      }
+    }
+
+    return res;
+  }
+
+  private static long size(final Path dest) throws Throwable {
+    try (final Stream<Path> s = Files.walk(dest)) {
+      return s.filter(Files::isRegularFile)
+              .mapToLong(p -> p.toFile().length())
+              .sum();
+    }
+  }
+
+  private static byte[] big() {
+    // Larger than the buffer and compressible
+    final byte[] b = new byte[3 * ArchiveExtractor.bufferSize + 17];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte)(i % 251);
+    }
+
+    return b;
+  }
+
+  private Path archive() throws Throwable {
+    final Path zip = dir.resolve("a.war");
+
+    try (final ZipOutputStream zos =
+                 new ZipOutputStream(Files.newOutputStream(zip))) {
+      entry(zos, "index.html", "<html/>");
+      entry(zos, "empty.txt", "");
+      stored(zos, "big.bin", big());
+      entry(zos, "WEB-INF/web.xml", "<web-app/>");
+
+      // File before its directory entries
+      entry(zos, "WEB-INF/classes/org/x/A.class", "cafebabe");
+      zos.putNextEntry(new ZipEntry("WEB-INF/classes/org/x/"));
+      zos.closeEntry();
+      zos.putNextEntry(new ZipEntry("WEB-INF/classes/"));
+      zos.closeEntry();
+
+      // Directory with nothing in it
+      zos.putNextEntry(new ZipEntry("WEB-INF/lib/"));
+      zos.closeEntry();
+
+      entry(zos, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+      entry(zos, "META-INF/jboss-service.xml", "<server/>");
+    }
+
+    return zip;
+  }
+
+  private static void entry(final ZipOutputStream zos,
+                            final String name,
+                            final String content) throws Throwable {
+    zos.putNextEntry(new ZipEntry(name));
+    zos.write(content.getBytes(StandardCharsets.UTF_8));
+    zos.closeEntry();
+  }
+
+  private static void stored(final ZipOutputStream zos,
+                             final String name,
+                             final byte[] content) throws Throwable {
+    final ZipEntry ze = new ZipEntry(name);
+    final CRC32 crc = new CRC32();
+
+    crc.update(content);
+    ze.setMethod(ZipEntry.STORED);
+    ze.setSize(content.length);
+    ze.setCompressedSize(content.length);
+    ze.setCrc(crc.getValue());
+
+    zos.putNextEntry(ze);
+    zos.write(content);
+    zos.closeEntry();
+  }
+}
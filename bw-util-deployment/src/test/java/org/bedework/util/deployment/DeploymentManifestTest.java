@@ -0,0 +1,141 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Building, storing and diffing deployment manifests.
+ *
+ * @author douglm
+ */
+public class DeploymentManifestTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  @Test
+  public void sameTreesAreSame() throws Throwable {
+    final Path a = tree("a");
+    final Path b = tree("b");
+
+    assertTrue(DeploymentManifest.build(utils, a)
+                                 .sameAs(DeploymentManifest.build(utils, b)));
+    assertFalse(DeploymentManifest.build(utils, a).sameAs(null));
+  }
+
+  @Test
+  public void changedContentDiffers() throws Throwable {
+    final Path a = tree("a");
+    final Path b = tree("b");
+
+    // Same size, different content
+    write(b, "WEB-INF/web.xml", "<web-app/>X");
+    write(a, "WEB-INF/web.xml", "<web-app/>Y");
+
+    assertFalse(DeploymentManifest.build(utils, a)
+                                  .sameAs(DeploymentManifest.build(utils, b)));
+  }
+
+  @Test
+  public void storeAndLoad() throws Throwable {
+    final Path a = tree("a");
+    final DeploymentManifest mf = DeploymentManifest.build(utils, a);
+
+    mf.store(dir, "a-1.0.war");
+    assertTrue(Files.isRegularFile(
+            dir.resolve(DeploymentManifest.manifestName("a-1.0.war"))));
+
+    final DeploymentManifest loaded =
+            DeploymentManifest.load(utils, dir, "a-1.0.war");
+    assertNotNull(loaded);
+    assertTrue(mf.sameAs(loaded));
+
+    DeploymentManifest.delete(dir, "a-1.0.war");
+    assertNull(DeploymentManifest.load(utils, dir, "a-1.0.war"));
+  }
+
+  @Test
+  public void badManifestIsIgnored() throws Throwable {
+    Files.writeString(dir.resolve(DeploymentManifest.manifestName("x")),
+                      "no-size-or-path\n");
+
+    assertNull(DeploymentManifest.load(utils, dir, "x"));
+  }
+
+  @Test
+  public void syncWritesOnlyChanges() throws Throwable {
+    final Path deployed = tree("deployed");
+    write(deployed, "old/gone.txt", "going");
+    final DeploymentManifest oldMf =
+            DeploymentManifest.build(utils, deployed);
+
+    final Path staged = tree("staged");
+    write(staged, "index.html", "<html>changed</html>");
+    write(staged, "new/added.txt", "added");
+    final DeploymentManifest newMf =
+            DeploymentManifest.build(utils, staged);
+
+    assertFalse(newMf.sameAs(oldMf));
+
+    newMf.sync(staged, deployed, oldMf);
+
+    assertEquals(2, newMf.getWritten());
+    assertEquals("<html>changed</html>".length() + "added".length(),
+                 newMf.getBytesWritten());
+    assertEquals(1, newMf.getRemoved());
+
+    assertEquals("<html>changed</html>", read(deployed, "index.html"));
+    assertEquals("added", read(deployed, "new/added.txt"));
+    assertFalse(Files.exists(deployed.resolve("old")),
+                "empty directory left behind");
+
+    assertTrue(DeploymentManifest.build(utils, deployed).sameAs(newMf));
+  }
+
+  @Test
+  public void syncWithoutOldCopiesEverything() throws Throwable {
+    final Path staged = tree("staged");
+    final Path deployed = dir.resolve("deployed");
+    final DeploymentManifest mf = DeploymentManifest.build(utils, staged);
+
+    mf.sync(staged, deployed, null);
+
+    assertEquals(3, mf.getWritten());
+    assertEquals(0, mf.getRemoved());
+    assertTrue(DeploymentManifest.build(utils, deployed).sameAs(mf));
+  }
+
+  private Path tree(final String name) throws Throwable {
+    final Path root = dir.resolve(name);
+
+    write(root, "index.html", "<html/>");
+    write(root, "WEB-INF/web.xml", "<web-app/>");
+    write(root, "WEB-INF/lib/a.jar", "jar");
+
+    return root;
+  }
+
+  private static void write(final Path root,
+                            final String rel,
+                            final String content) throws Throwable {
+    final Path p = root.resolve(rel);
+    Files.createDirectories(p.getParent());
+    Files.writeString(p, content, StandardCharsets.UTF_8);
+  }
+
+  private static String read(final Path root,
+                             final String rel) throws Throwable {
+    return Files.readString(root.resolve(rel), StandardCharsets.UTF_8);
+  }
+}
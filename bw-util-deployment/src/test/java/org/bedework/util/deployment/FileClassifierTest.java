@@ -0,0 +1,176 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.bedework.util.deployment.FileClassifier.Kind.BINARY;
+import static org.bedework.util.deployment.FileClassifier.Kind.EXCLUDED;
+import static org.bedework.util.deployment.FileClassifier.Kind.TOKENS;
+import static org.bedework.util.deployment.FileClassifier.Kind.TOKEN_FREE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Which files are token processed and the counts of each kind.
+ *
+ * @author douglm
+ */
+public class FileClassifierTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  @Test
+  public void globs() throws Throwable {
+    final FileClassifier fc = new FileClassifier(utils);
+    final Path png = write("logo.png", png());
+    final Path text = write("images/readme.txt", "${a}");
+    final Path jar = write("lib/a.jar", "not really a jar ${a}");
+
+    assertEquals(BINARY, fc.classify(png));
+    assertEquals(TOKENS, fc.classify(text));
+
+    // Always excluded
+    assertEquals(EXCLUDED, fc.classify(jar));
+    assertEquals(EXCLUDED, fc.classify(write("b.zip", "${a}")));
+
+    // Included is text whatever it looks like
+    fc.addInclude("*.png");
+    assertEquals(TOKENS, fc.classify(png));
+
+    // Exclude wins over include
+    fc.addExclude("logo.*");
+    assertEquals(EXCLUDED, fc.classify(png));
+    fc.addInclude("*.jar");
+    assertEquals(EXCLUDED, fc.classify(jar));
+
+    // Matched against the whole path
+    fc.addExclude("**/images/**");
+    assertEquals(EXCLUDED, fc.classify(text));
+  }
+
+  @Test
+  public void magic() throws Throwable {
+    final FileClassifier fc = new FileClassifier(utils);
+
+    assertEquals(BINARY, fc.classify(write("a.dat", png())));
+    assertEquals(BINARY, fc.classify(write("b.dat",
+                                           "%PDF-1.4\n${a}")));
+    assertEquals(BINARY, fc.classify(write("c.dat",
+                                           "PK\u0003\u0004${a}")));
+    assertEquals(BINARY, fc.classify(write("d.dat",
+                                           bytes(0xca, 0xfe, 0xba, 0xbe,
+                                                 '$', '{', 'a', '}'))));
+    assertEquals(BINARY, fc.classify(write("e.dat",
+                                           bytes(0x1f, 0x8b, 8, 'x'))));
+
+    // Too short to match
+    assertEquals(TOKENS, fc.classify(write("f.dat", "%PD")));
+    // Only at the start
+    assertEquals(TOKENS, fc.classify(write("g.dat", " %PDF ${a}")));
+  }
+
+  @Test
+  public void nulBytes() throws Throwable {
+    final FileClassifier fc = new FileClassifier(utils);
+
+    final byte[] early = "x".repeat(10000).getBytes(StandardCharsets.UTF_8);
+    early[8191] = 0;
+    assertEquals(BINARY, fc.classify(write("early.txt", early)));
+
+    // Past the sniffed block - still text
+    final byte[] late = "x".repeat(10000).getBytes(StandardCharsets.UTF_8);
+    late[8192] = 0;
+    assertEquals(TOKENS, fc.classify(write("late.txt", late)));
+  }
+
+  @Test
+  public void empty() throws Throwable {
+    final FileClassifier fc = new FileClassifier(utils);
+
+    assertEquals(TOKENS, fc.classify(write("empty.txt", new byte[0])));
+    assertEquals(TOKENS, fc.classify(write("empty.png", new byte[0])));
+  }
+
+  @Test
+  public void counts() throws Throwable {
+    final FileClassifier fc = new FileClassifier(utils);
+
+    fc.count(TOKENS, 10);
+    fc.count(TOKENS, 5);
+    fc.count(BINARY, 100);
+
+    assertEquals(2, fc.getFiles(TOKENS));
+    assertEquals(15, fc.getBytes(TOKENS));
+    assertEquals(1, fc.getFiles(BINARY));
+    assertEquals(100, fc.getBytes(BINARY));
+    assertEquals(0, fc.getFiles(EXCLUDED));
+    assertEquals(0, fc.getBytes(TOKEN_FREE));
+  }
+
+  @Test
+  public void countedByCopy() throws Throwable {
+    final Path in = dir.resolve("in");
+    final Path tokens = write("in/a.html", "<a href=\"${app.context}\"/>");
+    final Path plain = write("in/b.html", "<p>none</p>");
+    final Path empty = write("in/c.txt", new byte[0]);
+    final Path png = write("in/d.png", png());
+    final Path jar = write("in/e.jar", "jar");
+
+    final Properties p = new Properties();
+    p.setProperty("org.bedework.global.context", "/ctx");
+    final PropertiesChain pc = new PropertiesChain();
+    pc.push(p);
+
+    utils.copy(in, dir.resolve("out"), false, pc);
+
+    final FileClassifier fc = utils.getClassifier();
+
+    assertEquals(1, fc.getFiles(EXCLUDED));
+    assertEquals(Files.size(jar), fc.getBytes(EXCLUDED));
+    assertEquals(1, fc.getFiles(BINARY));
+    assertEquals(Files.size(png), fc.getBytes(BINARY));
+    assertEquals(2, fc.getFiles(TOKEN_FREE));
+    assertEquals(Files.size(plain) + Files.size(empty),
+                 fc.getBytes(TOKEN_FREE));
+    assertEquals(1, fc.getFiles(TOKENS));
+    assertEquals(Files.size(tokens), fc.getBytes(TOKENS));
+
+    assertEquals("<a href=\"/ctx\"/>",
+                 Files.readString(dir.resolve("out/a.html")));
+  }
+
+  private static byte[] png() {
+    final byte[] b = Arrays.copyOf(bytes(0x89, 'P', 'N', 'G', '\r', '\n'),
+                                   100);
+    Arrays.fill(b, 6, b.length, (byte)'a');
+    return b;
+  }
+
+  private static byte[] bytes(final int... vals) {
+    final byte[] b = new byte[vals.length];
+    for (int i = 0; i < vals.length; i++) {
+      b[i] = (byte)vals[i];
+    }
+    return b;
+  }
+
+  private Path write(final String name,
+                     final String content) throws Throwable {
+    return write(name, content.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private Path write(final String name,
+                     final byte[] content) throws Throwable {
+    final Path p = dir.resolve(name);
+    Files.createDirectories(p.getParent());
+    Files.write(p, content);
+    return p;
+  }
+}
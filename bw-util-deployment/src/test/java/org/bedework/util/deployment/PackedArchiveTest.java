@@ -0,0 +1,251 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/** Packed archives read back as the tree they were packed from,
+ * whether entries were copied raw from the source or compressed.
+ *
+ * @author douglm
+ */
+public class PackedArchiveTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  @Test
+  public void noSource() throws Throwable {
+    final Path tree = dir.resolve("tree");
+    Files.createDirectories(tree.resolve("WEB-INF/lib"));
+    Files.writeString(tree.resolve("index.html"), "<html/>");
+    Files.writeString(tree.resolve("WEB-INF/web.xml"), "<web-app/>");
+    Files.write(tree.resolve("empty.txt"), new byte[0]);
+
+    final Path out = dir.resolve("out.war");
+    final PackedArchive pa = new PackedArchive(utils);
+    pa.pack(tree, null, out);
+
+    assertEquals(0, pa.getRawEntries());
+    // 3 files and 2 directories
+    assertEquals(5, pa.getDeflatedEntries());
+
+    check(tree, out);
+
+    try (final ZipFile zf = new ZipFile(out.toFile())) {
+      assertEquals(ZipEntry.DEFLATED,
+                   zf.getEntry("index.html").getMethod());
+      assertEquals(ZipEntry.STORED,
+                   zf.getEntry("WEB-INF/lib/").getMethod());
+    }
+  }
+
+  @Test
+  public void fromSource() throws Throwable {
+    final Path source = dir.resolve("in.war");
+
+    try (final ZipOutputStream zos =
+                 new ZipOutputStream(Files.newOutputStream(source))) {
+      dirEntry(zos, "WEB-INF/");
+      // Deflated - written with data descriptors
+      deflated(zos, "WEB-INF/web.xml", "<web-app>${a}</web-app>");
+      deflated(zos, "index.html", "<html>" + "x".repeat(5000) + "</html>");
+      stored(zos, "img.png", bytes(3000));
+      stored(zos, "WEB-INF/classes/A.class", bytes(77));
+      dirEntry(zos, "WEB-INF/classes/");
+      deflated(zos, "empty.txt", "");
+    }
+
+    final Path tree = dir.resolve("tree");
+    final ArchiveExtractor ae = new ArchiveExtractor(utils);
+    ae.extract(source, tree);
+
+    // Edit one descriptor and add a file
+    Files.writeString(tree.resolve("WEB-INF/web.xml"),
+                      "<web-app>edited</web-app>");
+    Files.writeString(tree.resolve("WEB-INF/jboss-web.xml"),
+                      "<jboss-web/>");
+
+    final Path out = dir.resolve("out.war");
+    final PackedArchive pa = new PackedArchive(utils);
+    pa.pack(tree, source, out);
+
+    // Unchanged files and both directories come from the source
+    assertEquals(6, pa.getRawEntries());
+    assertEquals(2, pa.getDeflatedEntries());
+
+    check(tree, out);
+
+    try (final ZipFile in = new ZipFile(source.toFile());
+         final ZipFile zf = new ZipFile(out.toFile())) {
+      for (final String name: new String[]{"img.png",
+                                           "WEB-INF/classes/A.class",
+                                           "index.html",
+                                           "empty.txt"}) {
+        final ZipEntry ze = zf.getEntry(name);
+        final ZipEntry se = in.getEntry(name);
+
+        assertEquals(se.getMethod(), ze.getMethod(), name);
+        assertEquals(se.getCompressedSize(), ze.getCompressedSize(), name);
+      }
+
+      assertEquals(ZipEntry.DEFLATED,
+                   zf.getEntry("WEB-INF/web.xml").getMethod());
+    }
+  }
+
+  @Test
+  public void packAgain() throws Throwable {
+    // A packed archive is itself a usable source
+    final Path tree = dir.resolve("tree");
+    Files.createDirectories(tree.resolve("a/b"));
+    Files.writeString(tree.resolve("a/b/c.txt"), "c".repeat(1000));
+    Files.writeString(tree.resolve("d.txt"), "d");
+
+    final Path first = dir.resolve("first.war");
+    new PackedArchive(utils).pack(tree, null, first);
+
+    Files.writeString(tree.resolve("d.txt"), "dd");
+
+    final Path second = dir.resolve("second.war");
+    final PackedArchive pa = new PackedArchive(utils);
+    pa.pack(tree, first, second);
+
+    // a/ a/b/ and a/b/c.txt
+    assertEquals(3, pa.getRawEntries());
+    assertEquals(1, pa.getDeflatedEntries());
+
+    check(tree, second);
+  }
+
+  /* Read the archive both ways and compare with the tree */
+  private static void check(final Path tree,
+                            final Path archive) throws Throwable {
+    final Map<String, byte[]> expected = tree(tree);
+
+    final Map<String, byte[]> fromZipFile = new TreeMap<>();
+    try (final ZipFile zf = new ZipFile(archive.toFile())) {
+      final Enumeration<? extends ZipEntry> zes = zf.entries();
+
+      while (zes.hasMoreElements()) {
+        final ZipEntry ze = zes.nextElement();
+        final byte[] content;
+
+        try (final InputStream is = zf.getInputStream(ze)) {
+          content = is.readAllBytes();
+        }
+
+        assertEquals(crc(content), ze.getCrc(), ze.getName());
+        assertEquals(content.length, ze.getSize(), ze.getName());
+        fromZipFile.put(ze.getName(), content);
+      }
+    }
+
+    final Map<String, byte[]> fromStream = new TreeMap<>();
+    try (final ZipInputStream zis =
+                 new ZipInputStream(Files.newInputStream(archive))) {
+      for (ZipEntry ze = zis.getNextEntry();
+           ze != null;
+           ze = zis.getNextEntry()) {
+        fromStream.put(ze.getName(), zis.readAllBytes());
+      }
+    }
+
+    for (final Map<String, byte[]> read: List.of(fromZipFile,
+                                                 fromStream)) {
+      assertEquals(expected.keySet(), read.keySet());
+
+      for (final String name: expected.keySet()) {
+        assertNotNull(read.get(name), name);
+        assertArrayEquals(expected.get(name), read.get(name), name);
+      }
+    }
+  }
+
+  private static Map<String, byte[]> tree(final Path tree)
+          throws Throwable {
+    final Map<String, byte[]> res = new TreeMap<>();
+
+    try (final Stream<Path> s = Files.walk(tree)) {
+      for (final Path p: (Iterable<Path>)s::iterator) {
+        if (p.equals(tree)) {
+          continue;
+        }
+
+        final String name = tree.relativize(p).toString()
+                                .replace(File.separatorChar, '/');
+        if (Files.isDirectory(p)) {
+          res.put(name + "/", new byte[0]);
+        } else {
+          res.put(name, Files.readAllBytes(p));
+        }
+      }
+    }
+
+    return res;
+  }
+
+  private static long crc(final byte[] content) {
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    return crc.getValue();
+  }
+
+  private static byte[] bytes(final int len) {
+    final byte[] b = new byte[len];
+    for (int i = 0; i < len; i++) {
+      b[i] = (byte)(i * 31);
+    }
+    return b;
+  }
+
+  private static void dirEntry(final ZipOutputStream zos,
+                               final String name) throws Throwable {
+    zos.putNextEntry(new ZipEntry(name));
+    zos.closeEntry();
+  }
+
+  private static void deflated(final ZipOutputStream zos,
+                               final String name,
+                               final String content) throws Throwable {
+    zos.putNextEntry(new ZipEntry(name));
+    zos.write(content.getBytes(StandardCharsets.UTF_8));
+    zos.closeEntry();
+  }
+
+  private static void stored(final ZipOutputStream zos,
+                             final String name,
+                             final byte[] content) throws Throwable {
+    final ZipEntry ze = new ZipEntry(name);
+
+    ze.setMethod(ZipEntry.STORED);
+    ze.setSize(content.length);
+    ze.setCompressedSize(content.length);
+    ze.setCrc(crc(content));
+
+    zos.putNextEntry(ze);
+    zos.write(content);
+    zos.closeEntry();
+  }
+}
@@ -0,0 +1,162 @@
+package org.bedework.util.deployment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Whole runs deploying a war into a WildFly style deployments
+ * directory.
+ *
+ * @author douglm
+ */
+public class ProcessTest {
+  @TempDir
+  Path dir;
+
+  private Path in;
+  private Path deploy;
+  private Path props;
+
+  @BeforeEach
+  public void setUp() throws Throwable {
+    in = Files.createDirectories(dir.resolve("in"));
+    deploy = Files.createDirectories(dir.resolve("deployments"));
+    props = dir.resolve("deploy.properties");
+
+    Files.writeString(props,
+                      "org.bedework.global.context=/foo\n" +
+                      "org.bedework.global.security-domain=demo\n");
+  }
+
+  @Test
+  public void incrementalDeploys() throws Throwable {
+    war("bw-foo-1.0.war", "<html>1</html>");
+    run(false);
+
+    assertTrue(Files.isDirectory(deploy.resolve("bw-foo-1.0.war")));
+    assertEquals("<html>1</html>",
+                 Files.readString(deploy.resolve("bw-foo-1.0.war/index.html")));
+    assertTrue(dodeploy("bw-foo-1.0.war"));
+    deployed("bw-foo-1.0.war");
+
+    // Descriptors held while extracting are written, edited
+    final String jbossWeb = Files.readString(
+            deploy.resolve("bw-foo-1.0.war/WEB-INF/jboss-web.xml"));
+    assertTrue(jbossWeb.contains("/foo"), jbossWeb);
+    assertTrue(Files.isRegularFile(
+            deploy.resolve("bw-foo-1.0.war/WEB-INF/web.xml")));
+
+    // Same version again and unchanged - left alone
+    run(true);
+    assertFalse(dodeploy("bw-foo-1.0.war"));
+    assertTrue(marker("bw-foo-1.0.war", ".deployed"));
+
+    // Changed
+    Files.delete(in.resolve("bw-foo-1.0.war"));
+    war("bw-foo-1.0.war", "<html>2</html>");
+    run(true);
+    assertEquals("<html>2</html>",
+                 Files.readString(deploy.resolve("bw-foo-1.0.war/index.html")));
+    assertTrue(dodeploy("bw-foo-1.0.war"));
+  }
+
+  @Test
+  public void newVersionWithSameContentIsDeployed() throws Throwable {
+    war("bw-foo-1.0.war", "<html>1</html>");
+    run(false);
+    deployed("bw-foo-1.0.war");
+
+    // Only the version changes - the tree is adopted by a rename
+    Files.delete(in.resolve("bw-foo-1.0.war"));
+    war("bw-foo-1.1.war", "<html>1</html>");
+    run(false);
+
+    assertFalse(Files.exists(deploy.resolve("bw-foo-1.0.war")));
+    assertFalse(marker("bw-foo-1.0.war", ".deployed"));
+    assertTrue(Files.isDirectory(deploy.resolve("bw-foo-1.1.war")));
+    assertTrue(dodeploy("bw-foo-1.1.war"),
+               "renamed deployment must be deployed again");
+  }
+
+  @Test
+  public void failedDeploymentIsRetried() throws Throwable {
+    war("bw-foo-1.0.war", "<html>1</html>");
+    run(false);
+
+    // WildFly failed to deploy it
+    Files.delete(deploy.resolve("bw-foo-1.0.war.dodeploy"));
+    Files.writeString(deploy.resolve("bw-foo-1.0.war.failed"), "");
+
+    run(true);
+
+    assertFalse(marker("bw-foo-1.0.war", ".failed"));
+    assertTrue(dodeploy("bw-foo-1.0.war"));
+  }
+
+  /* noversion to process a version no later than the deployed one */
+  private void run(final boolean noversion) throws Throwable {
+    final Process pe = new Process();
+
+    pe.setBaseDirPath(dir.toString());
+    pe.setInDirPath(in.toString());
+    pe.setOutDirPath(dir.resolve("out").toString());
+    pe.setDeployDirPath(deploy.toString());
+    pe.setNoversion(noversion);
+    pe.setIncremental(true);
+    pe.addPropsPath(props.toString());
+    pe.setWarName("bw-foo");
+
+    pe.execute();
+  }
+
+  private boolean dodeploy(final String name) {
+    return marker(name, ".dodeploy");
+  }
+
+  private boolean marker(final String name,
+                         final String marker) {
+    return Files.exists(deploy.resolve(name + marker));
+  }
+
+  /* As WildFly does once it has deployed it */
+  private void deployed(final String name) throws Throwable {
+    Files.move(deploy.resolve(name + ".dodeploy"),
+               deploy.resolve(name + ".deployed"));
+  }
+
+  private void war(final String name,
+                   final String index) throws Throwable {
+    try (final ZipOutputStream zos = new ZipOutputStream(
+            Files.newOutputStream(in.resolve(name)))) {
+      entry(zos, "index.html", index);
+      entry(zos, "WEB-INF/web.xml",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<web-app>\n" +
+                    "  <login-config><realm-name>" +
+                    "${app.security-domain}</realm-name></login-config>\n" +
+                    "</web-app>\n");
+      entry(zos, "WEB-INF/jboss-web.xml",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<jboss-web><context-root>${app.context}" +
+                    "</context-root></jboss-web>\n");
+    }
+  }
+
+  private static void entry(final ZipOutputStream zos,
+                            final String name,
+                            final String content) throws Throwable {
+    zos.putNextEntry(new ZipEntry(name));
+    zos.write(content.getBytes(StandardCharsets.UTF_8));
+    zos.closeEntry();
+  }
+}
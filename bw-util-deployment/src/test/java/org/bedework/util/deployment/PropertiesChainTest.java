@@ -0,0 +1,179 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Lookups through the levels of a chain, remembered expansions and
+ * reference cycles.
+ *
+ * @author douglm
+ */
+public class PropertiesChainTest {
+  @Test
+  public void levelsAndGlobalFallback() {
+    final PropertiesChain pc = chain(
+            "org.bedework.global.security-domain", "global",
+            "org.bedework.app.bwcal.security-domain", "ear",
+            "org.bedework.app.bwcal.caladmin.security-domain", "war",
+            "org.bedework.app.bwcal.context", "/cal");
+
+    // Bottom level - app. is looked for as org.bedework.global.
+    assertEquals("global", pc.get("app.security-domain"));
+
+    pc.pushFiltered("org.bedework.app.bwcal.", "app.");
+    assertEquals("ear", pc.get("app.security-domain"));
+    assertEquals("/cal", pc.get("app.context"));
+
+    pc.pushFiltered("app.caladmin.", "app.");
+    assertEquals("war", pc.get("app.security-domain"));
+    assertEquals("/cal", pc.get("app.context"));
+
+    pc.pop();
+    assertEquals("ear", pc.get("app.security-domain"));
+
+    pc.pop();
+    assertEquals("global", pc.get("app.security-domain"));
+    assertNull(pc.get("app.context"));
+  }
+
+  @Test
+  public void tokensResolveFromTheTop() {
+    final PropertiesChain pc = chain(
+            "org.bedework.global.url", "http://${app.host}/${app.path}",
+            "org.bedework.global.host", "example.org",
+            "org.bedework.global.path", "cal",
+            "org.bedework.app.bwcal.host", "bwcal.example.org");
+
+    assertEquals("http://example.org/cal", pc.get("app.url"));
+
+    pc.pushFiltered("org.bedework.app.bwcal.", "app.");
+    assertEquals("http://bwcal.example.org/cal", pc.get("app.url"));
+
+    // What was remembered above is not seen below
+    pc.pop();
+    assertEquals("http://example.org/cal", pc.get("app.url"));
+  }
+
+  @Test
+  public void copiesShareLevels() {
+    final PropertiesChain pc = chain("a", "x${b}",
+                                     "b", "1");
+    final PropertiesChain copy = pc.copy();
+
+    final Properties p = new Properties();
+    p.setProperty("b", "2");
+    copy.push(p);
+
+    assertEquals("x2", copy.get("a"));
+    assertEquals("x1", pc.get("a"));
+
+    // Repeated lookups give the remembered result
+    assertEquals("x2", copy.get("a"));
+    assertEquals("x1", pc.get("a"));
+  }
+
+  @Test
+  public void pushedPropertiesAreFrozen() {
+    final Properties p = new Properties();
+    p.setProperty("a", "1");
+
+    final PropertiesChain pc = new PropertiesChain();
+    pc.push(p);
+    p.setProperty("a", "2");
+
+    assertEquals("1", pc.get("a"));
+  }
+
+  @Test
+  public void unresolvedTokensAreDropped() {
+    final PropertiesChain pc = chain("a", "x${missing}y");
+
+    assertEquals("xy", pc.get("a"));
+    assertEquals("ab${", pc.replace("ab${"));
+  }
+
+  @Test
+  public void systemPropertyFallback() {
+    final String name = "org.bedework.test.chain.sys";
+    System.setProperty(name, "sys");
+
+    try {
+      final PropertiesChain pc = chain("a", "${" + name + "}");
+
+      assertEquals("sys", pc.get(name));
+      assertEquals("sys", pc.get("a"));
+    } finally {
+      System.clearProperty(name);
+    }
+  }
+
+  @Test
+  public void cycleIsReported() {
+    final PropertiesChain pc = chain("q.a", "x${q.b}",
+                                     "q.b", "y${q.c}",
+                                     "q.c", "z${q.a}");
+
+    final RuntimeException e =
+            assertThrows(RuntimeException.class, () -> pc.get("q.a"));
+    assertEquals("Property value refers to itself: " +
+                         "q.a -> q.b -> q.c -> q.a",
+                 e.getMessage());
+
+    // Still reported - not remembered as resolved
+    assertThrows(RuntimeException.class, () -> pc.get("q.b"));
+  }
+
+  @Test
+  public void unusedCycleIsHarmless() {
+    final PropertiesChain pc = chain(
+            "org.bedework.global.a", "${app.b}",
+            "org.bedework.global.b", "${app.a}",
+            "org.bedework.app.bwcal.ok", "1${app.two}",
+            "org.bedework.global.two", "2");
+
+    pc.pushFiltered("org.bedework.app.bwcal.", "app.");
+
+    assertEquals("12", pc.get("app.ok"));
+    assertThrows(RuntimeException.class, () -> pc.get("app.a"));
+  }
+
+  @Test
+  public void nestedUsesAreRecorded() {
+    final PropertiesChain pc = chain(
+            "org.bedework.global.url", "http://${app.host}/",
+            "org.bedework.global.host", "example.org",
+            "org.bedework.global.other", "unused");
+    final PropertyDependencies deps =
+            new PropertyDependencies(new Utils(new SystemStreamLog()),
+                                     null);
+    pc.setDependencies(deps);
+
+    assertEquals("http://example.org/", pc.get("app.url"));
+
+    assertEquals(Set.of(PropertyDependencies.wholeDeployment),
+                 deps.affected(Set.of("org.bedework.global.host")));
+    assertTrue(deps.affected(Set.of("org.bedework.global.other"))
+                   .isEmpty());
+  }
+
+  private static PropertiesChain chain(final String... nameVals) {
+    final Properties p = new Properties();
+
+    for (int i = 0; i < nameVals.length; i += 2) {
+      p.setProperty(nameVals[i], nameVals[i + 1]);
+    }
+
+    final PropertiesChain pc = new PropertiesChain();
+    pc.push(p);
+
+    return pc;
+  }
+}
@@ -0,0 +1,164 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Loading layered property files, in memory and through the binary
+ * snapshot.
+ *
+ * @author douglm
+ */
+public class PropertyFilesTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  private Path global;
+  private Path host;
+  private Path cache;
+
+  @BeforeEach
+  public void setUp() throws Throwable {
+    PropertyFiles.clearLoaded();
+
+    global = dir.resolve("global.properties");
+    host = dir.resolve("host.properties");
+    cache = dir.resolve("props.snapshot");
+
+    write(global,
+          "org.bedework.global.context", "/cal",
+          "org.bedework.global.security-domain", "demo",
+          "org.bedework.global.empty", "");
+    write(host,
+          "org.bedework.global.security-domain", "host",
+          "org.bedework.app.bwcal.name", "Café ☕",
+          "org.bedework.app.bwcal.long", "x".repeat(70 * 1024));
+  }
+
+  @Test
+  public void laterFilesOverride() throws Throwable {
+    final PropertyFiles pf = new PropertyFiles(utils);
+    final PropertyStore store = pf.load(paths(), null);
+
+    assertEquals(5, store.names().size());
+    assertEquals("host", store.get("org.bedework.global.security-domain"));
+    assertEquals("/cal", store.get("org.bedework.global.context"));
+    assertNull(pf.getChanged(), "nothing to compare with");
+  }
+
+  @Test
+  public void unchangedFilesAreNotReloaded() throws Throwable {
+    final PropertyStore first =
+            new PropertyFiles(utils).load(paths(), null);
+    final PropertyFiles pf = new PropertyFiles(utils);
+
+    assertSame(first, pf.load(paths(), null));
+    assertEquals(Set.of(), pf.getChanged());
+  }
+
+  @Test
+  public void snapshotRoundTrip() throws Throwable {
+    final PropertyStore parsed =
+            new PropertyFiles(utils).load(paths(), cache.toString());
+    assertTrue(Files.isRegularFile(cache));
+
+    PropertyFiles.clearLoaded();
+    final PropertyFiles pf = new PropertyFiles(utils);
+    final PropertyStore fromSnapshot = pf.load(paths(), cache.toString());
+
+    assertEquals(new ArrayList<>(parsed.names()),
+                 new ArrayList<>(fromSnapshot.names()));
+    for (final String name: parsed.names()) {
+      assertEquals(parsed.get(name), fromSnapshot.get(name), name);
+    }
+    assertEquals(Set.of(), pf.getChanged());
+  }
+
+  @Test
+  public void changesSinceSnapshot() throws Throwable {
+    new PropertyFiles(utils).load(paths(), cache.toString());
+
+    // As if the next run were in a new process
+    PropertyFiles.clearLoaded();
+    write(host,
+          "org.bedework.global.security-domain", "changed",
+          "org.bedework.app.bwcal.name", "Café ☕",
+          "org.bedework.app.bwcal.added", "new");
+
+    final PropertyFiles pf = new PropertyFiles(utils);
+    final PropertyStore store = pf.load(paths(), cache.toString());
+
+    assertEquals("changed",
+                 store.get("org.bedework.global.security-domain"));
+    assertEquals(Set.of("org.bedework.global.security-domain",
+                        "org.bedework.app.bwcal.added",
+                        "org.bedework.app.bwcal.long"),
+                 pf.getChanged());
+  }
+
+  @Test
+  public void changesInMemory() throws Throwable {
+    new PropertyFiles(utils).load(paths(), null);
+
+    write(global,
+          "org.bedework.global.context", "/other",
+          "org.bedework.global.security-domain", "demo",
+          "org.bedework.global.empty", "");
+
+    final PropertyFiles pf = new PropertyFiles(utils);
+    pf.load(paths(), null);
+
+    assertEquals(Set.of("org.bedework.global.context"), pf.getChanged());
+  }
+
+  @Test
+  public void badSnapshotIsIgnored() throws Throwable {
+    Files.write(cache, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+    final PropertyFiles pf = new PropertyFiles(utils);
+    final PropertyStore store = pf.load(paths(), cache.toString());
+
+    assertEquals("host", store.get("org.bedework.global.security-domain"));
+    assertNull(pf.getChanged());
+
+    // And replaced by a good one
+    PropertyFiles.clearLoaded();
+    final PropertyFiles pf2 = new PropertyFiles(utils);
+    pf2.load(paths(), cache.toString());
+    assertEquals(Set.of(), pf2.getChanged());
+  }
+
+  private List<String> paths() {
+    return List.of(global.toString(), host.toString());
+  }
+
+  private static void write(final Path path,
+                            final String... nameVals) throws Throwable {
+    final Properties p = new Properties();
+
+    for (int i = 0; i < nameVals.length; i += 2) {
+      p.setProperty(nameVals[i], nameVals[i + 1]);
+    }
+
+    try (final var wtr = Files.newBufferedWriter(path,
+                                                 StandardCharsets.UTF_8)) {
+      p.store(wtr, null);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.bedework.util.deployment;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Levels and the prefix views filtered from them.
+ *
+ * @author douglm
+ */
+public class PropertyStoreTest {
+  private static final PropertyStore base = store(
+          "org.bedework.app.bwcal.context", "/cal",
+          "org.bedework.app.bwcal.caladmin.security-domain", "demo",
+          "org.bedework.app.bwcal.caladmin.context", "/caladmin",
+          "org.bedework.app.bwcalx.context", "/x",
+          "org.bedework.app.bwca.context", "/a",
+          "org.bedework.global.context", "/global");
+
+  @Test
+  public void namesAreSorted() {
+    assertEquals(List.of("org.bedework.app.bwca.context",
+                         "org.bedework.app.bwcal.caladmin.context",
+                         "org.bedework.app.bwcal.caladmin.security-domain",
+                         "org.bedework.app.bwcal.context",
+                         "org.bedework.app.bwcalx.context",
+                         "org.bedework.global.context"),
+                 names(base));
+  }
+
+  @Test
+  public void filterSelectsPrefixOnly() {
+    final PropertyStore ear = base.filter("org.bedework.app.bwcal.",
+                                          "app.");
+
+    assertEquals(List.of("app.caladmin.context",
+                         "app.caladmin.security-domain",
+                         "app.context"),
+                 names(ear));
+    assertEquals(3, ear.names().size());
+
+    assertEquals("/cal", ear.get("app.context"));
+    assertEquals("demo", ear.get("app.caladmin.security-domain"));
+    assertNull(ear.get("org.bedework.app.bwcal.context"));
+    assertNull(ear.get("app.nothere"));
+
+    assertTrue(ear.names().contains("app.context"));
+    assertFalse(ear.names().contains("app.nothere"));
+  }
+
+  @Test
+  public void filterOfView() {
+    final PropertyStore war = base.filter("org.bedework.app.bwcal.",
+                                          "app.")
+                                  .filter("app.caladmin.", "app.");
+
+    assertEquals(List.of("app.context", "app.security-domain"),
+                 names(war));
+    assertEquals("/caladmin", war.get("app.context"));
+    assertEquals("org.bedework.app.bwcal.caladmin.context",
+                 war.definedName("app.context"));
+
+    // Defined or not, names map back to where they would come from
+    assertEquals("org.bedework.app.bwcal.caladmin.nothere",
+                 war.definedName("app.nothere"));
+    assertNull(war.definedName("other.context"));
+  }
+
+  @Test
+  public void filterWiderThanView() {
+    // Every name in the view has the prefix - all are renamed
+    final PropertyStore view = base.filter("org.bedework.app.bwcal.",
+                                           "app.")
+                                   .filter("ap", "q.");
+
+    assertEquals(List.of("q.p.caladmin.context",
+                         "q.p.caladmin.security-domain",
+                         "q.p.context"),
+                 names(view));
+    assertEquals("/cal", view.get("q.p.context"));
+  }
+
+  @Test
+  public void filterOutsideViewIsEmpty() {
+    final PropertyStore view = base.filter("org.bedework.app.bwcal.",
+                                           "app.")
+                                   .filter("other.", "app.");
+
+    assertTrue(view.names().isEmpty());
+    assertNull(view.get("app.context"));
+  }
+
+  @Test
+  public void prefixAtEndOfCharacterRange() {
+    final String top = "a" + Character.MAX_VALUE;
+    final PropertyStore s = store(top + "x", "1",
+                                  top, "2",
+                                  "b", "3");
+
+    assertEquals(List.of("p.", "p.x"), names(s.filter(top, "p.")));
+    assertEquals(List.of("p." + Character.MAX_VALUE,
+                         "p." + Character.MAX_VALUE + "x"),
+                 names(s.filter("a", "p.")));
+  }
+
+  @Test
+  public void ofSortedMatchesOf() {
+    final List<String> names = names(base);
+    final String[] sorted = names.toArray(new String[0]);
+    final String[] values = new String[sorted.length];
+
+    for (int i = 0; i < sorted.length; i++) {
+      values[i] = base.get(sorted[i]);
+    }
+
+    final PropertyStore s = PropertyStore.ofSorted(sorted, values);
+
+    assertEquals(names, names(s));
+    assertEquals(names(base.filter("org.bedework.app.bwcal.", "app.")),
+                 names(s.filter("org.bedework.app.bwcal.", "app.")));
+    assertEquals("/x", s.get("org.bedework.app.bwcalx.context"));
+  }
+
+  private static List<String> names(final PropertyStore s) {
+    return new ArrayList<>(s.names());
+  }
+
+  private static PropertyStore store(final String... nameVals) {
+    final Properties p = new Properties();
+
+    for (int i = 0; i < nameVals.length; i += 2) {
+      p.setProperty(nameVals[i], nameVals[i + 1]);
+    }
+
+    return PropertyStore.of(p);
+  }
+}
@@ -0,0 +1,159 @@
+package org.bedework.util.deployment;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Splitting names into their parts, the cache of split names and
+ * ordering. Expected results are those given by the substring based
+ * implementation this replaced.
+ *
+ * @author douglm
+ */
+public class SplitNameTest {
+  /* name, artifactId, version, classifier, type */
+  private static final String[][] parts = {
+          {"bw-foo-1.0.war", "bw-foo", "1.0", null, "war"},
+          {"bw-foo-1.0.1.war", "bw-foo", "1.0.1", null, "war"},
+          {"bw-foo-1.9.war", "bw-foo", "1.9", null, "war"},
+          {"bw-foo-1.10.war", "bw-foo", "1.10", null, "war"},
+          {"bw-foo-2.0-SNAPSHOT.war", "bw-foo", "2.0", "SNAPSHOT", "war"},
+          {"bw-foo-2.0.war", "bw-foo", "2.0", null, "war"},
+          {"bw-foo-2.0-GA.war", "bw-foo", "2.0", "GA", "war"},
+          {"bw-foo-1.0.ear", "bw-foo", "1.0", null, "ear"},
+          {"bw-foobar-1.0.war", "bw-foobar", "1.0", null, "war"},
+          {"bw-ear-4.0.0.ear", "bw-ear", "4.0.0", null, "ear"},
+          {"bw-ear-4.0.0-SNAPSHOT.ear", "bw-ear", "4.0.0", "SNAPSHOT", "ear"},
+          {"bw-calendar-engine-5.0.3.ear",
+                  "bw-calendar-engine", "5.0.3", null, "ear"},
+          {"bw-calendar-engine-5.0.10.ear",
+                  "bw-calendar-engine", "5.0.10", null, "ear"},
+          {"bw-foo-1.0-min.war", "bw-foo", "1.0", "min", "war"},
+          {"bw-foo-1.0.0-1.war", "bw-foo", "1.0.0", "1", "war"},
+  };
+
+  /* Sign of compareTo(parts[row], parts[column]) */
+  private static final String[] order = {
+          "=<<<<<<><>>>><<",
+          ">=<<<<<><>>>>>>",
+          ">>=><<<><>>>>>>",
+          ">><=<<<><>>>>>>",
+          ">>>>=>>><>>>>>>",
+          ">>>><=<><>>>>>>",
+          ">>>><>=><>>>>>>",
+          "<<<<<<<=<>>>><<",
+          ">>>>>>>>=>>>>>>",
+          "<<<<<<<<<=<>><<",
+          "<<<<<<<<<>=>><<",
+          "<<<<<<<<<<<=><<",
+          "<<<<<<<<<<<<=<<",
+          "><<<<<<><>>>>=<",
+          "><<<<<<><>>>>>=",
+  };
+
+  @Test
+  public void partsOfName() {
+    for (final String[] p: parts) {
+      final SplitName sn = SplitName.testName(p[0]);
+
+      assertEquals(p[0], sn.getName());
+      assertEquals(p[1], sn.getArtifactId(), p[0]);
+      assertEquals(p[2], sn.getVersion(), p[0]);
+      assertEquals(p[3], sn.getClassifier(), p[0]);
+      assertEquals(p[4], sn.getType(), p[0]);
+    }
+  }
+
+  @Test
+  public void unsplittable() {
+    assertNull(SplitName.testName("nodash.war"));
+    assertNull(SplitName.testName("bw-foo-1"));
+
+    // Cached as unsplittable - still null
+    assertNull(SplitName.testName("nodash.war"));
+    assertNull(SplitName.testName("bw-foo-1"));
+
+    final SplitName sn = SplitName.testName("bw-foo.war");
+    assertEquals("bw", sn.getArtifactId());
+    assertEquals("foo", sn.getVersion());
+    assertEquals("war", sn.getType());
+  }
+
+  @Test
+  public void splitsAreCached() {
+    final SplitName sn = SplitName.testName("bw-cached-1.0.war");
+
+    assertSame(sn, SplitName.testName("bw-cached-1.0.war"));
+
+    // Already present - the cache is kept
+    SplitName.addClassifier("-SNAPSHOT.");
+    assertSame(sn, SplitName.testName("bw-cached-1.0.war"));
+  }
+
+  @Test
+  public void specificName() {
+    final SplitName sn = SplitName.testName("bw-spec-1.0-min.war");
+
+    // Agrees with the general split - the cached one is used
+    assertSame(sn, SplitName.testName("bw-spec-1.0-min.war", "bw-spec"));
+
+    final SplitName other =
+            SplitName.testName("bw-spec-1.0-min.war", "bw-spec-1.0");
+    assertNotSame(sn, other);
+    assertEquals("bw-spec-1.0", other.getArtifactId());
+    assertEquals("min", other.getVersion());
+    assertNull(other.getClassifier());
+
+    assertNull(SplitName.testName("bw-spec-1.0.war", "bw-sp"));
+    assertNull(SplitName.testName("bw-spec-1", "bw-spec"));
+
+    // Never the entry cached for names which cannot be split
+    assertNull(SplitName.testName("-"));
+    final SplitName empty = SplitName.testName("-1.0.war", "");
+    assertEquals("", empty.getArtifactId());
+    assertEquals("1.0", empty.getVersion());
+  }
+
+  @Test
+  public void ordering() {
+    for (int i = 0; i < parts.length; i++) {
+      final SplitName sn1 = SplitName.testName(parts[i][0]);
+
+      for (int j = 0; j < parts.length; j++) {
+        final SplitName sn2 = SplitName.testName(parts[j][0]);
+        final int res = sn1.compareTo(sn2);
+        final char sign = (res < 0) ? '<' : (res > 0) ? '>' : '=';
+
+        assertEquals(order[i].charAt(j), sign,
+                     parts[i][0] + " vs " + parts[j][0]);
+      }
+    }
+  }
+
+  @Test
+  public void sameAndLater() {
+    final SplitName v10 = SplitName.testName("bw-foo-1.10.war");
+    final SplitName v9 = SplitName.testName("bw-foo-1.9.war");
+    final SplitName ear = SplitName.testName("bw-foo-1.0.ear");
+    final SplitName foobar = SplitName.testName("bw-foobar-1.0.war");
+
+    assertTrue(v10.sameAs(v9));
+    assertFalse(v10.sameAs(ear));
+    assertFalse(v10.sameAs(foobar));
+
+    assertTrue(v10.laterThan(v9));
+    assertFalse(v9.laterThan(v10));
+    assertFalse(v10.laterThan(ear));
+
+    assertTrue(v10.laterThan(List.of(v9, ear)));
+    assertFalse(v9.laterThan(List.of(v10)));
+    assertTrue(v9.laterThan(List.of(ear, foobar)));
+  }
+}
@@ -0,0 +1,124 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Compiled templates kept for the run and the limits on what is
+ * kept.
+ *
+ * @author douglm
+ */
+public class TemplateCacheTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  @Test
+  public void compiledOnce() throws Throwable {
+    final Path f = write("a.html", "<p>${app.context}</p>");
+    final TemplateCache tc = new TemplateCache(utils);
+
+    final TokenTemplate tt = tc.get(f);
+    assertSame(tt, tc.get(f));
+    assertEquals(1, tc.getMisses());
+    assertEquals(1, tc.getHits());
+    assertEquals(Files.size(f), tc.getCachedBytes());
+  }
+
+  @Test
+  public void concurrentMissesCountedOnce() throws Throwable {
+    final int threads = 8;
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+    try {
+      for (int run = 0; run < 20; run++) {
+        final Path f = write("r" + run + ".html",
+                             "x".repeat(1000) + "${app.context}");
+        final TemplateCache tc = new TemplateCache(utils);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<TokenTemplate>> futures = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+          final Callable<TokenTemplate> get = () -> {
+            start.await();
+            try {
+              return tc.get(f);
+            } catch (final Throwable t) {
+              throw new Exception(t);
+            }
+          };
+          futures.add(pool.submit(get));
+        }
+
+        start.countDown();
+
+        final TokenTemplate tt = futures.get(0).get();
+        for (final Future<TokenTemplate> fut: futures) {
+          assertSame(tt, fut.get());
+        }
+
+        assertEquals(Files.size(f), tc.getCachedBytes());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void limits() throws Throwable {
+    final Path small = write("small.html", "${a}");
+    final Path large = write("large.html", "y".repeat(100) + "${a}");
+    final TemplateCache tc = new TemplateCache(utils);
+
+    tc.setMaxFileBytes(50);
+    assertNull(tc.get(large), "too large - streamed");
+    assertNotNull(tc.get(small));
+
+    // Over the total - compiled but not kept
+    final TemplateCache full = new TemplateCache(utils);
+    full.setMaxBytes(2);
+    final TokenTemplate tt = full.get(small);
+    assertNotNull(tt);
+    assertEquals(0, full.getCachedBytes());
+    assertNotSame(tt, full.get(small));
+  }
+
+  @Test
+  public void tokenFree() throws Throwable {
+    final Path plain = write("plain.txt", "no tokens $ here {}");
+    final Path tokens = write("tokens.txt", "one ${token}");
+    final TemplateCache tc = new TemplateCache(utils);
+
+    assertTrue(tc.isTokenFree(plain));
+    assertTrue(tc.isTokenFree(plain));
+    assertEquals(2, tc.getTokenFreeFiles());
+    assertFalse(tc.isTokenFree(tokens));
+  }
+
+  private Path write(final String name,
+                     final String content) throws Throwable {
+    final Path p = dir.resolve(name);
+    Files.writeString(p, content);
+    return p;
+  }
+}
@@ -0,0 +1,310 @@
+package org.bedework.util.deployment;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** The block at a time reader gives what the char at a time reader it
+ * replaced gave, however the source and the reads are split up.
+ *
+ * @author douglm
+ */
+public class TokenReplacingReaderTest {
+  private static final String longValue = "L".repeat(20000);
+
+  private static final Map<String, String> values =
+          Map.of("a", "AAA",
+                 "a.b-c", "dotted",
+                 "empty", "",
+                 "long", longValue,
+                 "self", "${a}");
+
+  private static final ITokenResolver resolver = values::get;
+
+  /* Every '$' is followed by something - the old reader could not
+     handle "$" at the end or an unterminated "${" */
+  private static final String[] pieces = {
+          "abc", "\n", " ", "{", "}", "$x", "$$y", "é€",
+          "${a}", "${a.b-c}", "${unknown}", "${empty}", "${long}",
+          "${self}", "${}",
+  };
+
+  @Test
+  public void sameAsCharReader() throws Throwable {
+    final Random rand = new Random(42);
+
+    for (int run = 0; run < 40; run++) {
+      final String in = random(rand, rand.nextInt(5000) + 1);
+      final String expected = readAll(new CharReader(new StringReader(in),
+                                                     resolver), 1);
+
+      for (final int chunk: new int[]{1, 3, 8191, 100000}) {
+        for (final int readLen: new int[]{1, 7, 8192, 50000}) {
+          assertEquals(expected,
+                       readAll(reader(in, chunk), readLen),
+                       "chunk " + chunk + " read " + readLen);
+        }
+      }
+
+      assertEquals(expected, readChars(reader(in, 5)));
+    }
+  }
+
+  @Test
+  public void tokenSplitAcrossBlocks() throws Throwable {
+    for (int at = 8180; at < 8200; at++) {
+      final String in = "x".repeat(at) + "${a}" + "y".repeat(10);
+      final String expected = "x".repeat(at) + "AAA" + "y".repeat(10);
+
+      assertEquals(expected, readAll(reader(in, 100000), 8192));
+      assertEquals(expected, readAll(reader(in, 4096), 100));
+      assertEquals(expected,
+                   readAll(new CharReader(new StringReader(in),
+                                          resolver), 8192));
+    }
+
+    // A name longer than the buffer
+    final String name = "n".repeat(20000);
+    assertEquals("${" + name + "}",
+                 readAll(reader("${" + name + "}", 1000), 8192));
+  }
+
+  @Test
+  public void unresolvedVerbatim() throws Throwable {
+    for (final String in: new String[]{"${unknown}", "${ spaced name }",
+                                       "${}", "a${b}c${d}"}) {
+      assertEquals(in, readAll(reader(in, 2), 3));
+    }
+
+    // Values are not resolved again
+    assertEquals("${a}", readAll(reader("${self}", 100), 100));
+    assertEquals("ab", readAll(reader("a${empty}b", 100), 100));
+  }
+
+  @Test
+  public void unterminated() throws Throwable {
+    for (final String in: new String[]{"${", "abc${", "abc${a", "${a}${",
+                                       "${" + "z".repeat(20000)}) {
+      for (final int chunk: new int[]{1, 8192}) {
+        assertEquals(in.replace("${a}", "AAA"),
+                     readAll(reader(in, chunk), 8192), in);
+      }
+    }
+
+    assertEquals("AAA${ab", readAll(reader("${a}${ab", 1), 1));
+  }
+
+  @Test
+  public void dollarAtEnd() throws Throwable {
+    for (final String in: new String[]{"$", "abc$", "$$", "${a}$"}) {
+      final String expected = in.replace("${a}", "AAA");
+
+      assertEquals(expected, readAll(reader(in, 1), 8192));
+      assertEquals(expected, readChars(reader(in, 8192)));
+    }
+  }
+
+  @Test
+  public void charBuffers() throws Throwable {
+    final String in = random(new Random(7), 3000);
+    final String expected = readAll(reader(in, 100000), 8192);
+
+    // Heap buffer at an offset in its array
+    final CharBuffer heap = CharBuffer.wrap(new char[500], 17, 300)
+                                      .slice();
+    assertEquals(expected, readAll(reader(in, 37), heap));
+
+    // No array
+    final CharBuffer direct =
+            ByteBuffer.allocateDirect(2 * 333).asCharBuffer();
+    assertEquals(expected, readAll(reader(in, 37), direct));
+
+    // Larger than the block
+    assertEquals(expected,
+                 readAll(reader(in, 100000),
+                         ByteBuffer.allocateDirect(2 * 20000)
+                                   .asCharBuffer()));
+
+    assertEquals(0, reader(in, 1).read(CharBuffer.allocate(0)));
+  }
+
+  private static TokenReplacingReader reader(final String in,
+                                             final int chunk) {
+    return new TokenReplacingReader(new ChunkedReader(in, chunk),
+                                    resolver);
+  }
+
+  private static String random(final Random rand,
+                               final int count) {
+    final StringBuilder sb = new StringBuilder();
+
+    for (int i = 0; i < count; i++) {
+      sb.append(pieces[rand.nextInt(pieces.length)]);
+    }
+
+    return sb.toString();
+  }
+
+  private static String readAll(final Reader rdr,
+                                final int readLen) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    final char[] buf = new char[readLen + 3];
+
+    for (;;) {
+      final int n = rdr.read(buf, 3, readLen);
+      if (n < 0) {
+        return sb.toString();
+      }
+
+      sb.append(buf, 3, n);
+    }
+  }
+
+  private static String readAll(final Reader rdr,
+                                final CharBuffer cb) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+
+    for (;;) {
+      cb.clear();
+      final int n = rdr.read(cb);
+      if (n < 0) {
+        return sb.toString();
+      }
+
+      assertEquals(n, cb.position());
+      cb.flip();
+      sb.append(cb);
+    }
+  }
+
+  private static String readChars(final Reader rdr) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+
+    for (int ch = rdr.read(); ch >= 0; ch = rdr.read()) {
+      sb.append((char)ch);
+    }
+
+    return sb.toString();
+  }
+
+  /* Delivers at most chunk chars a read */
+  private static class ChunkedReader extends Reader {
+    private final String s;
+    private final int chunk;
+    private int pos;
+
+    ChunkedReader(final String s,
+                  final int chunk) {
+      this.s = s;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int read(final char[] cbuf,
+                    final int off,
+                    final int len) {
+      if (pos == s.length()) {
+        return -1;
+      }
+
+      final int n = Math.min(Math.min(len, chunk), s.length() - pos);
+      s.getChars(pos, pos + n, cbuf, off);
+      pos += n;
+
+      return n;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /* The char at a time reader this replaced */
+  private static class CharReader extends Reader {
+    private final PushbackReader pushbackReader;
+    private final ITokenResolver tokenResolver;
+    private final StringBuilder tokenNameBuffer = new StringBuilder();
+    private String tokenValue;
+    private int tokenValueIndex;
+
+    CharReader(final Reader source,
+               final ITokenResolver resolver) {
+      pushbackReader = new PushbackReader(source, 2);
+      tokenResolver = resolver;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (tokenValue != null) {
+        if (tokenValueIndex < tokenValue.length()) {
+          return tokenValue.charAt(tokenValueIndex++);
+        }
+        if (tokenValueIndex == tokenValue.length()) {
+          tokenValue = null;
+          tokenValueIndex = 0;
+        }
+      }
+
+      int data = pushbackReader.read();
+      if (data != '$') {
+        return data;
+      }
+
+      data = pushbackReader.read();
+      if (data != '{') {
+        pushbackReader.unread(data);
+        return '$';
+      }
+      tokenNameBuffer.delete(0, tokenNameBuffer.length());
+
+      data = pushbackReader.read();
+      while (data != '}') {
+        tokenNameBuffer.append((char)data);
+        data = pushbackReader.read();
+      }
+
+      tokenValue = tokenResolver.resolveToken(tokenNameBuffer.toString());
+
+      if (tokenValue == null) {
+        tokenValue = "${" + tokenNameBuffer + "}";
+      }
+      if (tokenValue.isEmpty()) {
+        return read();
+      }
+      return tokenValue.charAt(tokenValueIndex++);
+    }
+
+    @Override
+    public int read(final char[] cbuf,
+                    final int off,
+                    final int len) throws IOException {
+      int charsRead = 0;
+      for (int i = 0; i < len; i++) {
+        final int nextChar = read();
+        if (nextChar == -1) {
+          if (charsRead == 0) {
+            charsRead = -1;
+          }
+          break;
+        }
+        charsRead = i + 1;
+        cbuf[off + i] = (char)nextChar;
+      }
+      return charsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      pushbackReader.close();
+    }
+  }
+}
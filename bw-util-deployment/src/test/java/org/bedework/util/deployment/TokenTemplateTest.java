@@ -0,0 +1,174 @@
+package org.bedework.util.deployment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Token replacement by compiled templates and by streaming, in
+ * particular for tokens split across the blocks read from a stream.
+ *
+ * @author douglm
+ */
+public class TokenTemplateTest {
+  @TempDir
+  Path dir;
+
+  private static final Map<String, String> values =
+          Map.of("host", "example.org",
+                 "empty", "",
+                 "u", "été");
+
+  private static final ITokenResolver resolver = values::get;
+
+  private static final String[] inputs = {
+          "",
+          "no tokens here",
+          "${host}",
+          "http://${host}/cal",
+          "${host}${host}",
+          "${ host }",
+          "a${empty}b",
+          "keep ${unknown} as is",
+          "$ not a token ${host}",
+          "$${host}",
+          "ends with $",
+          "ends with ${",
+          "unterminated ${host",
+          "${host} then unterminated ${host",
+          "} stray close ${host}",
+          "café ${u} über",
+          "${u}${host}${unknown}",
+  };
+
+  @Test
+  public void compiledTemplate() throws Throwable {
+    for (final String in: inputs) {
+      final TokenTemplate tt = TokenTemplate.compile(bytes(in));
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      tt.write(out, resolver);
+
+      assertEquals(expected(in), out.toString(StandardCharsets.UTF_8),
+                   in);
+    }
+  }
+
+  @Test
+  public void tokenCount() {
+    assertEquals(0, TokenTemplate.compile(bytes("a $ {b}")).getTokenCount());
+    assertEquals(2, TokenTemplate.compile(bytes("${a}x${b}${c"))
+                                 .getTokenCount());
+  }
+
+  @Test
+  public void streamedAcrossBlocks() throws Throwable {
+    // Every block size puts some token boundary at a block boundary
+    for (int chunk = 1; chunk <= 7; chunk++) {
+      for (final String in: inputs) {
+        assertEquals(expected(in), copy(in, chunk),
+                     "chunk " + chunk + ": " + in);
+      }
+    }
+  }
+
+  @Test
+  public void tokenLongerThanBuffer() throws Throwable {
+    final String name = "x".repeat(200 * 1024);
+    final String in = "a${" + name + "}b${host}";
+
+    assertEquals("a${" + name + "}bexample.org", copy(in, 8192));
+  }
+
+  @Test
+  public void containsTokens() throws Throwable {
+    final Path small = dir.resolve("small");
+    Files.writeString(small, "abc ${x} def");
+    assertTrue(TokenTemplate.containsTokens(small));
+
+    Files.writeString(small, "abc $ {x} def");
+    assertFalse(TokenTemplate.containsTokens(small));
+
+    // Large enough to be mapped, token right at the end
+    final Path large = dir.resolve("large");
+    Files.writeString(large, "a".repeat(300 * 1024) + "${");
+    assertTrue(TokenTemplate.containsTokens(large));
+
+    Files.writeString(large, "a".repeat(300 * 1024) + "$");
+    assertFalse(TokenTemplate.containsTokens(large));
+  }
+
+  /* Expected output by simple string replacement */
+  private static String expected(final String in) {
+    final StringBuilder sb = new StringBuilder();
+    int from = 0;
+
+    for (;;) {
+      final int start = in.indexOf("${", from);
+      final int end = (start < 0) ? -1 : in.indexOf('}', start);
+
+      if (end < 0) {
+        sb.append(in.substring(from));
+        return sb.toString();
+      }
+
+      sb.append(in, from, start);
+
+      final String val = values.get(in.substring(start + 2, end));
+      if (val == null) {
+        sb.append(in, start, end + 1);
+      } else {
+        sb.append(val);
+      }
+
+      from = end + 1;
+    }
+  }
+
+  private static String copy(final String in,
+                             final int chunk) throws Throwable {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    TokenTemplate.copy(new Trickle(bytes(in), chunk), out, resolver);
+
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytes(final String val) {
+    return val.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /* Returns at most chunk bytes from each read */
+  private static class Trickle extends InputStream {
+    private final ByteArrayInputStream is;
+    private final int chunk;
+
+    Trickle(final byte[] data,
+            final int chunk) {
+      is = new ByteArrayInputStream(data);
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int read() {
+      return is.read();
+    }
+
+    @Override
+    public int read(final byte[] b,
+                    final int off,
+                    final int len) {
+      return is.read(b, off, Math.min(len, chunk));
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package org.bedework.util.deployment;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Copying trees on the calling thread and in parallel, and removing
+ * old versions.
+ *
+ * @author douglm
+ */
+public class UtilsTest {
+  @TempDir
+  Path dir;
+
+  private final Utils utils = new Utils(new SystemStreamLog());
+
+  @AfterEach
+  public void tearDown() {
+    utils.shutdown();
+  }
+
+  @Test
+  public void parallelCopySameTree() throws Throwable {
+    final Path in = tree();
+
+    final Map<String, byte[]> seq = copy(in, "seq", 0, null);
+    final Map<String, byte[]> par = copy(in, "par", 4, null);
+
+    same(tree(in), seq);
+    same(seq, par);
+  }
+
+  @Test
+  public void parallelTokenCopySameTree() throws Throwable {
+    final Path in = tree();
+    final Properties p = new Properties();
+    // At the bottom of the chain app. names are global names
+    p.setProperty("org.bedework.global.context", "/ctx");
+    final PropertiesChain pc = new PropertiesChain();
+    pc.push(p);
+
+    final Map<String, byte[]> seq = copy(in, "seq", 0, pc);
+    final Map<String, byte[]> par = copy(in, "par", 4, pc);
+
+    same(seq, par);
+    assertEquals("<a href=\"/ctx/x\"/>",
+                 new String(seq.get("docs/index.html")));
+    assertEquals("${unknown}", new String(seq.get("docs/unknown.html")));
+  }
+
+  @Test
+  public void batchSize() {
+    assertEquals(1, Utils.batchSize(new PropertiesChain()));
+    assertTrue(Utils.batchSize(null) > 1);
+  }
+
+  @Test
+  public void linkedDirectoryCopied() throws Throwable {
+    final Path in = Files.createDirectories(dir.resolve("in"));
+    Files.createDirectories(in.resolve("lib"));
+    Files.writeString(in.resolve("lib/x.txt"), "x");
+    Files.createSymbolicLink(in.resolve("link"), in.resolve("lib"));
+
+    for (final int threads: new int[]{0, 4}) {
+      final Path out = dir.resolve("out" + threads);
+      utils.setCopyThreads(threads);
+      utils.copy(in, out, false, null);
+
+      // Not an ancestor - followed and copied as a directory
+      assertFalse(Files.isSymbolicLink(out.resolve("link")));
+      assertEquals("x", Files.readString(out.resolve("link/x.txt")));
+    }
+  }
+
+  @Test
+  public void cycleStopsCopy() throws Throwable {
+    final Path in = Files.createDirectories(dir.resolve("in"));
+    Files.createDirectories(in.resolve("a/b"));
+    Files.writeString(in.resolve("a/b/f.txt"), "f");
+    Files.createSymbolicLink(in.resolve("a/b/loop"), in.resolve("a"));
+
+    for (final int threads: new int[]{0, 4}) {
+      final Path out = dir.resolve("out" + threads);
+      utils.setCopyThreads(threads);
+
+      // Returns rather than copying forever
+      utils.copy(in, out, false, null);
+
+      assertFalse(Files.exists(out.resolve("a/b/loop/b")),
+                  threads + " threads");
+    }
+  }
+
+  @Test
+  public void deleteMatchingKeeps() throws Throwable {
+    final Path deploy = Files.createDirectories(dir.resolve("deploy"));
+    for (final String nm: new String[]{"bw-foo-1.0.war",
+                                       "bw-foo-1.1.war",
+                                       "bw-foobar-1.0.war",
+                                       "bw-foo-1.0.ear"}) {
+      Files.createDirectories(deploy.resolve(nm));
+      Files.writeString(deploy.resolve(nm).resolve("f.txt"), nm);
+    }
+    Files.writeString(deploy.resolve("bw-foo-1.0.war.deployed"), "");
+
+    final SplitName sn = SplitName.testName("bw-foo-1.1.war");
+
+    utils.deleteMatching(deploy.toString(), sn, sn.getName());
+
+    assertFalse(Files.exists(deploy.resolve("bw-foo-1.0.war")));
+    assertTrue(Files.exists(deploy.resolve("bw-foo-1.1.war/f.txt")));
+    // Name only starts with ours
+    assertTrue(Files.exists(deploy.resolve("bw-foobar-1.0.war")));
+    assertTrue(Files.exists(deploy.resolve("bw-foo-1.0.ear")));
+    assertTrue(Files.exists(deploy.resolve("bw-foo-1.0.war.deployed")));
+
+    // Nothing kept
+    utils.deleteMatching(deploy.toString(), sn);
+    assertFalse(Files.exists(deploy.resolve("bw-foo-1.1.war")));
+    assertTrue(Files.exists(deploy.resolve("bw-foobar-1.0.war")));
+
+    // Too short to be safe
+    final SplitName shortSn = SplitName.testName("ab-1.0.war");
+    assertThrows(Exception.class,
+                 () -> utils.deleteMatching(deploy.toString(), shortSn));
+  }
+
+  private Map<String, byte[]> copy(final Path in,
+                                   final String name,
+                                   final int threads,
+                                   final PropertiesChain props)
+          throws Throwable {
+    final Path out = dir.resolve(name);
+
+    utils.setCopyThreads(threads);
+    utils.copy(in, out, false, props);
+
+    return tree(out);
+  }
+
+  private Path tree() throws Throwable {
+    final Path in = Files.createDirectories(dir.resolve("in"));
+
+    // More files than a batch in one directory
+    final Path many = Files.createDirectories(in.resolve("many"));
+    for (int i = 0; i < 100; i++) {
+      Files.writeString(many.resolve("f" + i + ".txt"), "file " + i);
+    }
+
+    Files.createDirectories(in.resolve("a/b/c"));
+    Files.writeString(in.resolve("a/b/c/deep.txt"), "deep");
+    Files.createDirectories(in.resolve("empty"));
+    Files.write(in.resolve("a/zero.bin"), new byte[0]);
+
+    Files.createDirectories(in.resolve("docs"));
+    Files.writeString(in.resolve("docs/index.html"),
+                      "<a href=\"${app.context}/x\"/>");
+    Files.writeString(in.resolve("docs/unknown.html"), "${unknown}");
+
+    return in;
+  }
+
+  /* Relative path to content - directories map to an empty array */
+  private static Map<String, byte[]> tree(final Path root)
+          throws Throwable {
+    final Map<String, byte[]> res = new TreeMap<>();
+
+    try (final Stream<Path> s = Files.walk(root)) {
+      for (final Path p: (Iterable<Path>)s::iterator) {
+        final String name = root.relativize(p).toString()
+                                .replace(File.separatorChar, '/');
+
+        if (Files.isDirectory(p)) {
+          res.put(name + "/", new byte[0]);
+        } else {
+          res.put(name, Files.readAllBytes(p));
+        }
+      }
+    }
+
+    return res;
+  }
+
+  private static void same(final Map<String, byte[]> expected,
+                           final Map<String, byte[]> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+
+    for (final String name: expected.keySet()) {
+      assertArrayEquals(expected.get(name), actual.get(name), name);
+    }
+  }
+}
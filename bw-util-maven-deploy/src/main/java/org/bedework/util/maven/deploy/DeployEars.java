@@ -6,11 +6,13 @@ package org.bedework.util.maven.deploy;
 import org.bedework.util.deployment.Process;
 
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * User: mike Date: 12/18/15 Time: 00:15
@@ -42,6 +44,22 @@ public class DeployEars extends AbstractMojo {
   @Parameter(defaultValue = "true")
   private boolean delete;
 
+  // Only write files changed since the last deploy
+  @Parameter
+  private boolean incremental;
+
+  // Stage then swap the deployment in by renaming
+  @Parameter
+  private boolean atomic;
+
+  // Hard link unmodified files instead of copying
+  @Parameter
+  private boolean linkFiles;
+
+  // Deploy each ear/war/sar as a single archive
+  @Parameter
+  private boolean packed;
+
   @Parameter(defaultValue = "true")
   private boolean forWildfly;
 
@@ -57,6 +75,63 @@ public class DeployEars extends AbstractMojo {
   @Parameter
   private String sarName;
 
+  // Any number of ears, wars or sars processed concurrently
+  @Parameter
+  private List<String> artifactNames;
+
+  // Default is the number of processors
+  @Parameter
+  private Integer threads;
+
+  // > 1 to extract each archive using that many threads
+  @Parameter
+  private int unzipThreads;
+
+  // > 1 to copy directory trees using that many threads
+  @Parameter
+  private int copyThreads;
+
+  // Threads used to copy docs trees with token replacement. Default
+  // is the number of processors
+  @Parameter
+  private Integer docsThreads;
+
+  // > 0 to stage up to that many MB in a memory backed directory
+  @Parameter
+  private int memoryStagingMb;
+
+  @Parameter(defaultValue = "/dev/shm")
+  private String memoryStagingPath;
+
+  @Parameter
+  private String timingsPath;
+
+  @Parameter(defaultValue = "64")
+  private int templateCacheMb;
+
+  // Globs for files always/never token processed
+  @Parameter
+  private List<String> tokenIncludes;
+
+  @Parameter
+  private List<String> tokenExcludes;
+
+  // Report used, unresolved and unused properties
+  @Parameter
+  private boolean tokenStats;
+
+  // Property files merged in order - later files override earlier
+  @Parameter
+  private List<String> propsPaths;
+
+  // Binary snapshot of the parsed property files
+  @Parameter
+  private String propsCachePath;
+
+  // Also process deployments using properties changed since last run
+  @Parameter
+  private boolean propsChanged;
+
   @Parameter
   private String resourcesBase;
 
@@ -64,7 +139,8 @@ public class DeployEars extends AbstractMojo {
 
   }
 
-  public void execute() throws MojoFailureException {
+  public void execute() throws MojoExecutionException,
+                               MojoFailureException {
     final Process pe = new Process();
 
     int numFound = 0;
@@ -77,7 +153,11 @@ public class DeployEars extends AbstractMojo {
     if (sarName != null) {
       numFound++;
     }
-    if (numFound != 1) {
+    if ((artifactNames != null) && !artifactNames.isEmpty()) {
+      if (numFound != 0) {
+        throw new MojoFailureException("artifactNames cannot be combined with earName, sarName or warName");
+      }
+    } else if (numFound != 1) {
       throw new MojoFailureException("Exactly one of earName, sarName or warName is required");
     }
 
@@ -91,10 +171,33 @@ public class DeployEars extends AbstractMojo {
     pe.setNoversion(noversion);
     pe.setCheckonly(checkonly);
     pe.setDelete(delete);
+    pe.setIncremental(incremental);
+    pe.setAtomic(atomic);
+    pe.setLinkFiles(linkFiles);
+    pe.setPacked(packed);
     pe.setCleanup(cleanup);
     pe.setEarName(earName);
     pe.setSarName(sarName);
     pe.setWarName(warName);
+    pe.setArtifactNames(artifactNames);
+    if (threads != null) {
+      pe.setThreads(threads);
+    }
+    pe.setUnzipThreads(unzipThreads);
+    pe.setCopyThreads(copyThreads);
+    if (docsThreads != null) {
+      pe.setDocsThreads(docsThreads);
+    }
+    pe.setMemoryStagingMb(memoryStagingMb);
+    pe.setMemoryStagingPath(memoryStagingPath);
+    pe.setTimingsPath(timingsPath);
+    pe.setTemplateCacheMb(templateCacheMb);
+    pe.setTokenIncludes(tokenIncludes);
+    pe.setTokenExcludes(tokenExcludes);
+    pe.setTokenStats(tokenStats);
+    pe.setPropsPaths(propsPaths);
+    pe.setPropsCachePath(propsCachePath);
+    pe.setPropsChanged(propsChanged);
 
     pe.execute();
   }